@@ -12,6 +12,7 @@ import picocli.CommandLine.ParameterException;
  * <ul>
  * <li>Run as 1 time instance, returning the HAPI stream via stdout
  * <li>Launch a HAPI proxy server
+ * <li>Prefetch HAPI data into the cache
  * </ul>
  *
  * @author lopeznr1
@@ -19,8 +20,8 @@ import picocli.CommandLine.ParameterException;
 public class ActionMixin
 {
 	// Constants: Error messages
-	private static final String ERR_ACTION_NONE_SPECIFIED = "Specify 1 action to be taken: --fetchOnce or --startProxy";
-	private static final String ERR_ACTION_TOO_MANY_SPECIFIED = "Only 1 action can be taken. --fetchOnce or --startProxy";
+	private static final String ERR_ACTION_NONE_SPECIFIED = "Specify 1 action to be taken: --fetchOnce, --startProxy or --prefetch";
+	private static final String ERR_ACTION_TOO_MANY_SPECIFIED = "Only 1 action can be taken. --fetchOnce, --startProxy or --prefetch";
 
 	@Option(names = { "--fetchOnce" }, //
 			description = "Launch the hapi-cache as a single instance and return the HAPI stream via stdout.")
@@ -31,20 +32,33 @@ public class ActionMixin
 			description = "Start a HAPI proxy server on the provided local port number with a proxy to the specified HAPI endpoint.\n")
 	public ProxyAttr proxyAttr = null;
 
+	@Option(names = { "--prefetch" }, //
+			description = "Fill the cache with the HAPI data specified by --url-file or --datasets, skipping data "
+					+ "that is already fresh.\n")
+	public boolean prefetch;
+
 	/**
 	 * Method to ensure that the action arguments are properly specified.
 	 * <p>
-	 * Validation consists of ensuring either --fetchOnce or --startProxy is specified.
+	 * Validation consists of ensuring exactly 1 of --fetchOnce, --startProxy or --prefetch is specified.
 	 * <p>
 	 * On any failure this will throw a {@link ParameterException}.
 	 */
 	public void validate(CommandLine aCommandLine)
 	{
 		// Ensure exactly 1 action is provided
-		if (fetchOnce == true && proxyAttr != null)
+		var numActions = 0;
+		if (fetchOnce == true)
+			numActions++;
+		if (proxyAttr != null)
+			numActions++;
+		if (prefetch == true)
+			numActions++;
+
+		if (numActions > 1)
 			throw new ParameterException(aCommandLine, ERR_ACTION_TOO_MANY_SPECIFIED);
 
-		if (fetchOnce == false && proxyAttr == null)
+		if (numActions == 0)
 			throw new ParameterException(aCommandLine, ERR_ACTION_NONE_SPECIFIED);
 
 		// Nothing else to validate
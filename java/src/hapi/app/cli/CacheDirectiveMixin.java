@@ -4,6 +4,7 @@ import java.io.File;
 import java.time.LocalDateTime;
 
 import hapi.cache.CacheDirective;
+import hapi.cache.StorageFormat;
 import picocli.CommandLine;
 import picocli.CommandLine.Option;
 import picocli.CommandLine.ParameterException;
@@ -11,7 +12,8 @@ import picocli.CommandLine.ParameterException;
 /**
  * Object which defines the (Picocli) arguments that allow specification of HAPI cache directives.
  * <p>
- * The following arguments are provided: --cache-dir, --stale-after, --use-stale-if-error
+ * The following arguments are provided: --cache-dir, --stale-after, --use-stale-if-error, --max-connections-per-host,
+ * --storage-format
  *
  * @author lopeznr1
  */
@@ -21,6 +23,7 @@ public class CacheDirectiveMixin
 	private static final String ERR_STALE_AFTER_INVALID_INPUT = "--stale-after: Invalid input. Please run with --help-arg for details on argument aDura";
 	private static final String ERR_STALE_AFTER_AS_FUTURE_DATETIME = "--stale-after: The provided explicit time is in the future. It must be in the past.";
 	private static final String ERR_STALE_AFTER_AS_NEGATIVE_DURATION = "--stale-after: The provided relative duration is negative. It must be positive.";
+	private static final String ERR_MAX_CONNECTIONS_NOT_POSITIVE = "--max-connections-per-host: The number of connections must be positive.";
 
 	@Option(names = { "--cache-dir" }, paramLabel = "<aPath>", //
 			description = "Path to the top level HAPI cache", required = true, defaultValue = "")
@@ -34,12 +37,22 @@ public class CacheDirectiveMixin
 			description = "Utilize the (stale) cache if an attempt to update results in failure.")
 	private boolean useStaleIfErr;
 
+	@Option(names = { "--max-connections-per-host" }, paramLabel = "<aNum>", //
+			description = "Maximum number of concurrent downloads from a remote HAPI server. Default: ${DEFAULT-VALUE}", //
+			defaultValue = "4")
+	private int maxConnectionsPerHost;
+
+	@Option(names = { "--storage-format" }, paramLabel = "<aFormat>", //
+			description = "Format used to store data in the cache. Values: ${COMPLETION-CANDIDATES}. Default: ${DEFAULT-VALUE}", //
+			defaultValue = "RAW")
+	private StorageFormat storageFormat;
+
 	/**
 	 * Returns the {@link CacheDirective} associated with this {@link CacheDirectiveMixin}.
 	 */
 	public CacheDirective getCacheDirective()
 	{
-		return new CacheDirective(pathCacheDir, staleAfter, useStaleIfErr);
+		return new CacheDirective(pathCacheDir, staleAfter, useStaleIfErr, maxConnectionsPerHost, storageFormat);
 	}
 
 	/**
@@ -48,12 +61,17 @@ public class CacheDirectiveMixin
 	 * Validation consists of:
 	 * <ul>
 	 * <li>if the --stale-after option is specified, then ensure it can be properly parsed.
+	 * <li>the --max-connections-per-host option must be positive.
 	 * </ul>
 	 * <p>
 	 * On any failure this will throw a {@link ParameterException}.
 	 */
 	public void validate(CommandLine aCommandLine)
 	{
+		// Ensure the --max-connections-per-host option is valid
+		if (maxConnectionsPerHost <= 0)
+			throw new ParameterException(aCommandLine, ERR_MAX_CONNECTIONS_NOT_POSITIVE);
+
 		// Ensure the --stale-after option is valid (if it is defined)
 		if (staleAfter != null)
 		{
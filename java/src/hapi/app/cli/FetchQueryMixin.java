@@ -69,6 +69,14 @@ public class FetchQueryMixin
 		return new FetchQuery(dataset, timeBegStr, timeEndStr, parameterL, includeHeader);
 	}
 
+	/**
+	 * Returns the URL to the HAPI server (--server). This will be null if not specified.
+	 */
+	public URL getServer()
+	{
+		return server;
+	}
+
 	/**
 	 * Returns the HAPI datapoint {@link URL}..
 	 */
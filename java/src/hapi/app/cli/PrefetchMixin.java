@@ -0,0 +1,186 @@
+package hapi.app.cli;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import hapi.SpecVersion;
+import hapi.server.FetchQuery;
+import hapi.server.HapiEndpointUtil;
+import picocli.CommandLine;
+import picocli.CommandLine.Option;
+import picocli.CommandLine.ParameterException;
+
+/**
+ * Object which defines the (Picocli) arguments that allow specification of the HAPI data to prefetch into the cache.
+ * <p>
+ * The data can be specified either by a file of HAPI data URLs (--url-file) or by the cross product of the arguments
+ * --datasets, --parameter-sets and --time-ranges (along with --server). The following arguments control the prefetch:
+ * --parallelism, --max-requests-per-second
+ *
+ * @author lopeznr1
+ */
+public class PrefetchMixin
+{
+	// Constants: Error messages
+	private static final String ERR_ARGS_NEEDED_URL_FILE_OR_DATASETS = "--prefetch: Please specify either: --url-file or --datasets (with --server and --time-ranges)";
+	private static final String ERR_ARGS_URL_FILE_WITH_DATASETS = "--prefetch: Argument --url-file is not compatible with args: {--datasets, --parameter-sets, --time-ranges}";
+	private static final String ERR_SERVER_NEEDED = "--prefetch: The --server argument must be specified with the --datasets argument";
+	private static final String ERR_TIME_RANGES_NEEDED = "--prefetch: The --time-ranges argument must be specified with the --datasets argument";
+	private static final String ERR_TIME_RANGE_INVALID = "--prefetch: Invalid time range (expected <aStart>/<aStop>): ";
+	private static final String ERR_URL_FILE_NOT_READABLE = "--url-file: The file can not be read: ";
+	private static final String ERR_PARALLELISM_NOT_POSITIVE = "--parallelism: The number of concurrent downloads must be positive.";
+	private static final String ERR_MAX_REQUESTS_NEGATIVE = "--max-requests-per-second: The rate must not be negative.";
+
+	@Option(names = { "--url-file" }, paramLabel = "<aPath>", //
+			description = "File of HAPI data URLs to prefetch, 1 per line. Blank lines and lines starting with # are ignored.")
+	private File urlFile;
+
+	@Option(names = { "--datasets" }, paramLabel = "<aDataset>", arity = "1..*", //
+			description = "Datasets (from the --server) to prefetch.")
+	private List<String> datasetL;
+
+	@Option(names = { "--parameter-sets" }, paramLabel = "<parm,...>", arity = "1..*", //
+			description = "Comma separated parameter sets to prefetch for each dataset. Default: all parameters")
+	private List<String> parameterSetL;
+
+	@Option(names = { "--time-ranges" }, paramLabel = "<aStart/aStop>", arity = "1..*", //
+			description = "Time ranges to prefetch for each dataset.")
+	private List<String> timeRangeL;
+
+	@Option(names = { "--parallelism" }, paramLabel = "<aNum>", //
+			description = "Number of granules to prefetch concurrently. Default: ${DEFAULT-VALUE}", //
+			defaultValue = "4")
+	private int parallelism;
+
+	@Option(names = { "--max-requests-per-second" }, paramLabel = "<aNum>", //
+			description = "Maximum number of granules requested from the remote HAPI server per second. "
+					+ "Default: ${DEFAULT-VALUE} (no limit)\n", //
+			defaultValue = "0")
+	private double maxRequestsPerSecond;
+
+	/**
+	 * Returns the number of granules to prefetch concurrently.
+	 */
+	public int getParallelism()
+	{
+		return parallelism;
+	}
+
+	/**
+	 * Returns the maximum number of granules to request from the remote server per second. A value of 0 means no limit.
+	 */
+	public double getMaxRequestsPerSecond()
+	{
+		return maxRequestsPerSecond;
+	}
+
+	/**
+	 * Returns the list of HAPI data {@link URL}s to prefetch.
+	 * <p>
+	 * These are either the URLs in the --url-file or the cross product of the --datasets, --parameter-sets and
+	 * --time-ranges.
+	 */
+	public List<URL> getRequestUrls(URL aServer, SpecVersion aSpecVersion) throws IOException
+	{
+		var retL = new ArrayList<URL>();
+
+		// Read the URLs from the file
+		if (urlFile != null)
+		{
+			for (var aLine : Files.readAllLines(urlFile.toPath()))
+			{
+				var tmpLine = aLine.strip();
+				if (tmpLine.isEmpty() == true || tmpLine.startsWith("#") == true)
+					continue;
+				retL.add(new URL(tmpLine));
+			}
+			return retL;
+		}
+
+		// Form the URLs from the cross product of the arguments
+		var tmpParameterSetL = new ArrayList<List<String>>();
+		if (parameterSetL == null)
+			tmpParameterSetL.add(null);
+		else
+			for (var aParameterSet : parameterSetL)
+				tmpParameterSetL.add(Arrays.asList(aParameterSet.split(",")));
+
+		for (var aDataset : datasetL)
+		{
+			for (var aParameterL : tmpParameterSetL)
+			{
+				for (var aTimeRange : timeRangeL)
+				{
+					var tmpIdx = aTimeRange.indexOf('/');
+					var tmpFetchQuery = new FetchQuery(aDataset, aTimeRange.substring(0, tmpIdx),
+							aTimeRange.substring(tmpIdx + 1), aParameterL, false);
+					retL.add(HapiEndpointUtil.formFetch(aServer, aSpecVersion, tmpFetchQuery));
+				}
+			}
+		}
+
+		return retL;
+	}
+
+	/**
+	 * Method to ensure that the prefetch arguments are properly specified.
+	 * <p>
+	 * Validation consists of:
+	 * <ul>
+	 * <li>either --url-file or --datasets is specified, but not both.
+	 * <li>the --url-file is readable.
+	 * <li>the --datasets option is accompanied by the --server and --time-ranges options.
+	 * <li>each time range is of the form: start/stop
+	 * <li>the --parallelism option must be positive and the --max-requests-per-second must not be negative.
+	 * </ul>
+	 * <p>
+	 * On any failure this will throw a {@link ParameterException}.
+	 */
+	public void validate(CommandLine aCommandLine, URL aServer)
+	{
+		// Ensure the --parallelism and --max-requests-per-second options are valid
+		if (parallelism <= 0)
+			throw new ParameterException(aCommandLine, ERR_PARALLELISM_NOT_POSITIVE);
+
+		if (maxRequestsPerSecond < 0)
+			throw new ParameterException(aCommandLine, ERR_MAX_REQUESTS_NEGATIVE);
+
+		// Ensure exactly 1 style of specification is provided
+		var isQuery = datasetL != null || parameterSetL != null || timeRangeL != null;
+		if (urlFile != null && isQuery == true)
+			throw new ParameterException(aCommandLine, ERR_ARGS_URL_FILE_WITH_DATASETS);
+
+		if (urlFile != null)
+		{
+			if (Files.isReadable(urlFile.toPath()) == false)
+				throw new ParameterException(aCommandLine, ERR_URL_FILE_NOT_READABLE + urlFile);
+			return;
+		}
+
+		if (datasetL == null)
+			throw new ParameterException(aCommandLine, ERR_ARGS_NEEDED_URL_FILE_OR_DATASETS);
+
+		if (aServer == null)
+			throw new ParameterException(aCommandLine, ERR_SERVER_NEEDED);
+
+		if (timeRangeL == null)
+			throw new ParameterException(aCommandLine, ERR_TIME_RANGES_NEEDED);
+
+		// Ensure each time range has a start and a stop
+		for (var aTimeRange : timeRangeL)
+		{
+			var tmpIdx = aTimeRange.indexOf('/');
+			if (tmpIdx <= 0 || tmpIdx == aTimeRange.length() - 1)
+				throw new ParameterException(aCommandLine, ERR_TIME_RANGE_INVALID + aTimeRange);
+		}
+
+		// Nothing else to validate
+		return;
+	}
+
+}
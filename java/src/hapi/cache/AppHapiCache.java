@@ -1,6 +1,9 @@
 package hapi.cache;
 
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.net.URL;
 
 import hapi.SpecVersion;
 import hapi.app.AppInfo;
@@ -9,6 +12,7 @@ import hapi.app.cli.CacheDirectiveMixin;
 import hapi.app.cli.FetchQueryMixin;
 import hapi.app.cli.IntroMixin;
 import hapi.app.cli.PicocliParseUtil;
+import hapi.app.cli.PrefetchMixin;
 import hapi.server.ServerUtil;
 import picocli.CommandLine;
 import picocli.CommandLine.Command;
@@ -27,6 +31,7 @@ import picocli.CommandLineUtil;
                               Application to interact with a HAPI cache. The following is provided:
                                - Log details of the local HAPI cache
                                - Pull remote content into the local HAPI cache
+                               - Prefetch (warm up) the local HAPI cache for datasets and time ranges
                                - Send to stdout a HAPI stream (from the local HAPI cache or a remote HAPI server)
                                - Expire stale data in the local HAPI cache
                               """
@@ -58,6 +63,9 @@ public class AppHapiCache
 	@Mixin
 	private CacheDirectiveMixin argCacheDirectiveMixin;
 
+	@Mixin
+	private PrefetchMixin argPrefetchMixin;
+
 	/**
 	 * Main entry point of application
 	 */
@@ -95,6 +103,10 @@ public class AppHapiCache
 					app.argFetchQueryMixin.validate(tmpCL, app.argSpecVersion);
 			}
 
+			// Validate Prefetch args if action == prefetch
+			if (app.argActionMixin.prefetch == true)
+				app.argPrefetchMixin.validate(tmpCL, app.argFetchQueryMixin.getServer());
+
 		}
 		catch (ParameterException aExp)
 		{
@@ -108,6 +120,9 @@ public class AppHapiCache
 			fetchOnce(cacheDirective, app.argSpecVersion, app.argFetchQueryMixin, app.isDryRun);
 		else if (app.argActionMixin.proxyAttr != null)
 			ServerUtil.startProxy(cacheDirective, app.argActionMixin.proxyAttr);
+		else if (app.argActionMixin.prefetch == true)
+			prefetch(cacheDirective, app.argSpecVersion, app.argFetchQueryMixin.getServer(), app.argPrefetchMixin,
+					app.isDryRun);
 	}
 
 	/**
@@ -130,11 +145,13 @@ public class AppHapiCache
 		// Create the HapiCache2024 object.
 		var hapiCache2024 = new HapiCache2024(aCacheDirective);
 
-		// Fetch the content from the URL and return via stdout
-		var outStream = System.out;
+		// Fetch the content from the URL and return via stdout. A channel is used so that content from the cache
+		// can be sent without copying it through the heap.
+		System.out.flush();
+		var outChannel = new FileOutputStream(FileDescriptor.out).getChannel();
 		try (var aInStream = hapiCache2024.getInputStream(tmpUrl))
 		{
-			aInStream.transferTo(outStream);
+			ChannelTransfer.transfer(aInStream, outChannel);
 		}
 		catch (IOException aExp)
 		{
@@ -142,4 +159,30 @@ public class AppHapiCache
 		}
 	}
 
+	/**
+	 * Utility helper method that will fill the cache with the HAPI data specified by the {@link PrefetchMixin}. The
+	 * progress is reported via stdout.
+	 */
+	private static void prefetch(CacheDirective aCacheDirective, SpecVersion aSpecVersion, URL aServer,
+			PrefetchMixin aPrefetchMixin, boolean aIsDryRun) throws IOException, InterruptedException
+	{
+		var tmpUrlL = aPrefetchMixin.getRequestUrls(aServer, aSpecVersion);
+
+		// Log the action to be taken and bail
+		if (aIsDryRun == true)
+		{
+			System.err.println("\n[dry-run] Action ---> prefetch:");
+			for (var aUrl : tmpUrlL)
+				System.err.println("  " + aUrl);
+			System.err.println();
+			return;
+		}
+
+		// Delegate
+		var hapiCache2024 = new HapiCache2024(aCacheDirective);
+		var tmpPrefetcher = new Prefetcher(hapiCache2024, aPrefetchMixin.getParallelism(),
+				aPrefetchMixin.getMaxRequestsPerSecond());
+		tmpPrefetcher.prefetch(tmpUrlL, System.out);
+	}
+
 }
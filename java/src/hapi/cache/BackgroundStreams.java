@@ -0,0 +1,182 @@
+
+package hapi.cache;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * work on streams which is done in the background, so the client does not wait for it.
+ * The next stream of a concatenation is opened while the current one is read, which
+ * may involve waiting for its download, and the rest of a stream the client does not
+ * need is read after the client is done, so that the download into the cache is completed.
+ * <p>
+ * A virtual thread is used for each task when the runtime supports them (Java 21+), and 
+ * otherwise there is a pool of threads, which end after they are idle for a second.  Either way
+ * no more than MAX_TASKS tasks run at once, so a burst of requests cannot start an unbounded
+ * number of downloads.  When all of these are busy, a stream is opened by the caller, and a
+ * stream is closed rather than read.
+ * The threads are daemons, so they do not keep the program from exiting.  A stream which 
+ * has not been read completely when the program exits is left as a partial download,
+ * which is resumed by the next request for it when the remote server allows.
+ * @author jbf
+ */
+public class BackgroundStreams {
+
+    private static final Logger logger= Logger.getLogger(BackgroundStreams.class.getName());
+
+    /**
+     * the number of tasks which may run at once, which is also the number of threads when 
+     * virtual threads are not available.
+     */
+    private static final int MAX_TASKS= 64;
+
+    private static final ExecutorService executor= newExecutor();
+
+    private static final Semaphore running= new Semaphore( MAX_TASKS );
+
+    private BackgroundStreams() {
+    }
+
+    /**
+     * return an executor with a virtual thread for each task when the runtime supports them,
+     * otherwise a bounded pool of daemon threads.
+     */
+    private static ExecutorService newExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch ( ReflectiveOperationException ex ) {
+            logger.log( Level.FINE, "virtual threads are not available" );
+        }
+        return new ThreadPoolExecutor( 0, MAX_TASKS, 1, TimeUnit.SECONDS, new SynchronousQueue<>(), (r) -> {
+            Thread t= new Thread( r, "hapiCacheBackgroundStream" );
+            t.setDaemon(true);
+            return t;
+        } );
+    }
+
+    /**
+     * run the task in the background, unless MAX_TASKS tasks are already running.
+     * @param task the task
+     * @throws RejectedExecutionException when the task cannot be run now.
+     */
+    private static void execute( Runnable task ) {
+        if ( !running.tryAcquire() ) {
+            throw new RejectedExecutionException( "all background tasks are busy" );
+        }
+        try {
+            executor.execute( () -> {
+                try {
+                    task.run();
+                } finally {
+                    running.release();
+                }
+            } );
+        } catch ( RejectedExecutionException ex ) {
+            running.release();
+            throw ex;
+        }
+    }
+
+    /**
+     * start opening the stream.
+     * @param provider the provider
+     * @return the stream, when it is open.  See {@link #get} and {@link #abandon}.
+     */
+    public static CompletableFuture<InputStream> open( InputStreamProvider provider ) {
+        CompletableFuture<InputStream> result= new CompletableFuture<>();
+        Runnable task= () -> {
+            try {
+                result.complete( provider.openInputStream() );
+            } catch ( IOException | RuntimeException ex ) {
+                result.completeExceptionally(ex);
+            }
+        };
+        try {
+            execute( task );
+        } catch ( RejectedExecutionException ex ) {
+            task.run(); // all the threads are busy.
+        }
+        return result;
+    }
+
+    /**
+     * wait for the stream to be opened, or for other work done in the background.
+     * @param <T> the type of the result
+     * @param opening the stream being opened, from {@link #open}.
+     * @return the stream
+     * @throws IOException when the stream could not be opened.
+     */
+    public static <T> T get( CompletableFuture<T> opening ) throws IOException {
+        try {
+            return opening.get();
+        } catch ( ExecutionException ex ) {
+            Throwable cause= ex.getCause();
+            if ( cause instanceof IOException ) {
+                throw (IOException)cause;
+            } else if ( cause instanceof RuntimeException ) {
+                throw (RuntimeException)cause;
+            } else {
+                throw new IOException(cause);
+            }
+        } catch ( InterruptedException ex ) {
+            throw new InterruptedIOException( "interrupted while opening stream" );
+        }
+    }
+
+    /**
+     * close the stream when it is opened, because it will not be read.
+     * @param opening the stream being opened, from {@link #open}.
+     */
+    public static void abandon( CompletableFuture<InputStream> opening ) {
+        opening.whenComplete( (ins,ex) -> {
+            if ( ins!=null ) {
+                try {
+                    ins.close();
+                } catch ( IOException ex1 ) {
+                    logger.log( Level.FINE, "unable to close abandoned stream", ex1 );
+                }
+            }
+        } );
+    }
+
+    /**
+     * read the rest of the stream in the background and then close it.  This is used when
+     * the stream might be reading from a remote server and writing the cache file, which is only
+     * kept when it is complete.  Streams reading files, and streams following a download, which is 
+     * completed for them anyway, are just closed, as are all streams when the threads are busy.
+     * @param ins the stream
+     * @throws IOException when a file stream cannot be closed.
+     */
+    public static void drain( InputStream ins ) throws IOException {
+        if ( ins instanceof FileInputStream || ins instanceof FileRegionInputStream 
+                || ins instanceof InFlightDownload.FollowerInputStream || ins instanceof ResumingInputStream ) {
+            ins.close();
+            return;
+        }
+        try {
+            execute( () -> {
+                try ( ins ) {
+                    ins.transferTo( OutputStream.nullOutputStream() );
+                } catch ( IOException ex ) {
+                    logger.log( Level.FINE, "unable to read the rest of the stream", ex );
+                }
+            } );
+        } catch ( RejectedExecutionException ex ) {
+            ins.close();
+        }
+    }
+}
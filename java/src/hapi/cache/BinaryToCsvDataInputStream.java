@@ -0,0 +1,161 @@
+package hapi.cache;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Suppose the cache has a granule in HAPI binary, and the client wants HAPI CSV.
+ * This formats each binary record as a CSV line, using the types of the
+ * parameters in the record layout.
+ * <p>
+ * The values are the same, but the text may not be the same as the CSV of the
+ * remote server: doubles are formatted by Java, so "1e-5" is sent as "1.0E-5" and 
+ * "-1e31" as "-1.0E31", and times have the length of the binary field.
+ * @author jbf
+ * @see CsvToBinaryDataInputStream
+ */
+public class BinaryToCsvDataInputStream extends InputStream {
+
+    /**
+     * the number of bytes read from the source at once, rounded to whole records.
+     */
+    private static final int BUFFER_SIZE= 65536;
+
+    InputStream ins;
+
+    /**
+     * the type of each parameter, and the number of elements and bytes per element, from the layout.
+     */
+    RecordLayout.Type[] types;
+    int[] counts;
+    int[] lengths;
+
+    int recLength;
+    byte[] inBuf;
+    ByteBuffer inRec;
+    
+    /**
+     * the number of bytes of a partial record kept at the start of inBuf from the last block.
+     */
+    int inCarry= 0;
+
+    StringBuilder line= new StringBuilder();
+    byte[] outBuf= new byte[0];
+    int outPos= 0;
+    int outLimit= 0;
+    boolean eof= false;
+
+    /**
+     * @param layout the layout of the binary records
+     * @param ins the binary stream
+     */
+    public BinaryToCsvDataInputStream( RecordLayout layout, InputStream ins ) {
+        this.ins= ins;
+        int n= layout.parameterCount();
+        types= new RecordLayout.Type[n];
+        counts= new int[n];
+        lengths= new int[n];
+        for ( int i=0; i<n; i++ ) {
+            types[i]= layout.type(i);
+            counts[i]= layout.count(i);
+            lengths[i]= layout.width(i);
+        }
+        recLength= layout.recordLength();
+        inBuf= new byte[ Math.max( 1, BUFFER_SIZE / recLength ) * recLength ];
+        inRec= ByteBuffer.wrap(inBuf).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * append the string, which ends at the first null, quoting it when it contains a comma or quote.
+     */
+    private void appendString( int offset, int length, boolean quote ) {
+        int end= offset;
+        while ( end<offset+length && inBuf[end]!=0 ) end++;
+        String s= new String( inBuf, offset, end-offset, StandardCharsets.UTF_8 );
+        if ( quote && ( s.indexOf(',')>-1 || s.indexOf('"')>-1 || s.indexOf('\n')>-1 ) ) {
+            line.append('"').append( s.replace("\"","\"\"") ).append('"');
+        } else {
+            line.append(s);
+        }
+    }
+
+    /**
+     * read the next block of records and format them.  The block ends as soon as a whole
+     * record has arrived, so that records from a source which is still being downloaded 
+     * are sent as they arrive, and a partial record is kept for the next block.  A partial 
+     * record at the end of the stream is dropped.
+     */
+    private void readNextBlock() throws IOException {
+        int bytesRead= inCarry;
+        while ( bytesRead<inBuf.length ) {
+            int b= ins.read( inBuf, bytesRead, inBuf.length-bytesRead );
+            if ( b==-1 ) {
+                eof= true;
+                break;
+            }
+            bytesRead+= b;
+            if ( bytesRead>=recLength ) {
+                break;
+            }
+        }
+        int nrec= bytesRead / recLength;
+        line.setLength(0);
+        int offset= 0;
+        for ( int irec=0; irec<nrec; irec++ ) {
+            for ( int i=0; i<types.length; i++ ) {
+                for ( int j=0; j<counts[i]; j++ ) {
+                    if ( i>0 || j>0 ) line.append(',');
+                    switch ( types[i] ) {
+                        case ISOTIME -> appendString( offset, lengths[i], false );
+                        case STRING -> appendString( offset, lengths[i], true );
+                        case DOUBLE -> line.append( inRec.getDouble(offset) );
+                        case INT -> line.append( inRec.getInt(offset) );
+                    }
+                    offset+= lengths[i];
+                }
+            }
+            line.append('\n');
+        }
+        inCarry= bytesRead - nrec * recLength;
+        System.arraycopy( inBuf, nrec * recLength, inBuf, 0, inCarry );
+        outBuf= line.toString().getBytes( StandardCharsets.UTF_8 );
+        outPos= 0;
+        outLimit= outBuf.length;
+    }
+
+    @Override
+    public int read(byte[] b) throws IOException {
+        return read( b, 0, b.length );
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if ( len==0 ) return 0;
+        while ( outPos==outLimit ) {
+            if ( eof ) {
+                return -1;
+            }
+            readNextBlock();
+        }
+        int ll= Math.min( len, outLimit-outPos );
+        System.arraycopy( outBuf, outPos, b, off, ll );
+        outPos+= ll;
+        return ll;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] buf= new byte[1];
+        int bytesRead= read( buf, 0, 1 );
+        return bytesRead==-1 ? -1 : ( buf[0] & 0xFF );
+    }
+
+    @Override
+    public void close() throws IOException {
+        ins.close();
+    }
+
+}
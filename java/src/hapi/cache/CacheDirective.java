@@ -14,11 +14,14 @@ import hapi.app.cli.ArgDuraUtil;
  * <li>rootCacheDir: The path to the top level folder of the HAPI cache.
  * <li>staleAfter: Defines how long the content in the cached should be utilized before considering it stale.
  * <li>useStaleIfErr: Defines if the (stale) cache should be utilized, if an attempt to update results in failure.
+ * <li>maxConnectionsPerHost: Defines the maximum number of concurrent downloads from any one remote HAPI server.
+ * <li>storageFormat: Defines how data granules are stored in the cache.
  * </ul>
  *
  * @author lopeznr1
  */
-public record CacheDirective(File rootCacheDir, String staleAfter, boolean useStaleIfErr)
+public record CacheDirective(File rootCacheDir, String staleAfter, boolean useStaleIfErr, int maxConnectionsPerHost,
+		StorageFormat storageFormat)
 {
 	/**
 	 * Returns the staleAfter attribute as a {@link Duration}. Returns null if the attribute was not expressed as a
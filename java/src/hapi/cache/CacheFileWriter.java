@@ -0,0 +1,339 @@
+
+package hapi.cache;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * OutputStream for writing a file into the cache.  Bytes are written to a temporary
+ * ".part" file next to the cache file, which is renamed to the cache file only when
+ * commit is called, so that readers never see a partially written file.
+ * <p>
+ * When a download is interrupted, the .part file can be kept along with the
+ * upstream validator (ETag or Last-Modified) in a ".partinfo" file, so that a later
+ * download can request only the remaining bytes.  When the file is committed, the
+ * validator is kept in a ".validator" file, so that the file can be revalidated
+ * with a conditional request when it is stale.
+ * <p>
+ * When the file is to be compressed, the temporary file is still written uncompressed, 
+ * so that it can be resumed and read while it is written.  It is moved to the cache file 
+ * uncompressed when it is committed, so that the stream being read does not wait, and is then 
+ * compressed with gzip in the background.  Readers detect the compression, so either can be read.
+ * The compression is done by a daemon thread, so a file which is not compressed when the
+ * application exits is left uncompressed.
+ * @author jbf
+ */
+public class CacheFileWriter extends OutputStream {
+
+    private static final Logger logger= Logger.getLogger(CacheFileWriter.class.getName());
+
+    private static final long IDLE_SECONDS= 10;
+
+    /**
+     * compresses committed files one at a time.
+     */
+    private static final ExecutorService compressor;
+    static {
+        ThreadPoolExecutor pool= new ThreadPoolExecutor( 1, 1, IDLE_SECONDS, TimeUnit.SECONDS, 
+            new LinkedBlockingQueue<>(), (r) -> {
+            Thread t= new Thread( r, "hapiCacheCompressor" );
+            t.setDaemon(true);
+            return t;
+        } );
+        pool.allowCoreThreadTimeOut(true);
+        compressor= pool;
+    }
+
+    /**
+     * suffix for the file being written.
+     */
+    public static final String PART_SUFFIX= ".part";
+
+    /**
+     * suffix for the file containing the validator of the partial download.
+     */
+    public static final String PARTINFO_SUFFIX= ".partinfo";
+
+    /**
+     * suffix for the file containing the validator of the complete file.
+     */
+    public static final String VALIDATOR_SUFFIX= ".validator";
+
+    private final File file;
+    private final File partFile;
+    private final FileOutputStream out;
+    private long length;
+    private boolean closed= false;
+    private boolean compress= false;
+    private CacheIndex index= null;
+
+    /**
+     * open the temporary file for the cache file.
+     * @param file the cache file
+     * @param append if true, then append to the existing partial download.
+     * @throws IOException
+     */
+    public CacheFileWriter( File file, boolean append ) throws IOException {
+        this.file= file;
+        this.partFile= partFileFor(file);
+        this.length= append ? partFile.length() : 0;
+        if ( !append ) {
+            partInfoFileFor(file).delete();
+        }
+        this.out= new FileOutputStream( partFile, append );
+    }
+
+    /**
+     * return the temporary file used while writing the file.
+     * @param file the cache file
+     * @return the temporary file
+     */
+    public static File partFileFor( File file ) {
+        return new File( file.getPath() + PART_SUFFIX );
+    }
+
+    private static File partInfoFileFor( File file ) {
+        return new File( file.getPath() + PARTINFO_SUFFIX );
+    }
+
+    /**
+     * return the file containing the validator of the cache file.
+     * @param file the cache file
+     * @return the validator file
+     */
+    public static File validatorFileFor( File file ) {
+        return new File( file.getPath() + VALIDATOR_SUFFIX );
+    }
+
+    /**
+     * return true if the name is a file containing the validator of a cache file.
+     * @param name the file name
+     * @return true if the file contains a validator.
+     */
+    public static boolean isValidatorFile( String name ) {
+        return name.endsWith(VALIDATOR_SUFFIX);
+    }
+
+    /**
+     * return true if the name is one of the temporary files used while writing.
+     * @param name the file name
+     * @return true if the file is temporary
+     */
+    public static boolean isTemporary( String name ) {
+        return name.endsWith(PART_SUFFIX) || name.endsWith(PARTINFO_SUFFIX);
+    }
+
+    /**
+     * return the number of bytes of an interrupted download which can be resumed,
+     * or zero if there is no download which can be resumed.
+     * @param file the cache file
+     * @return the number of bytes already downloaded.
+     */
+    public static long resumableLength( File file ) {
+        File part= partFileFor(file);
+        if ( part.exists() && partInfoFileFor(file).exists() ) {
+            return part.length();
+        } else {
+            return 0;
+        }
+    }
+
+    /**
+     * return the validator (ETag or Last-Modified) of the interrupted download.
+     * @param file the cache file
+     * @return the validator, or null if it is not available.
+     */
+    public static String resumeValidator( File file ) {
+        try {
+            return new String( Files.readAllBytes( partInfoFileFor(file).toPath() ), StandardCharsets.UTF_8 ).trim();
+        } catch ( IOException ex ) {
+            return null;
+        }
+    }
+
+    /**
+     * return the validator (ETag or Last-Modified) of the response which provided the cache file.
+     * @param file the cache file
+     * @return the validator, or null if it is not available.
+     */
+    public static String storedValidator( File file ) {
+        try {
+            return new String( Files.readAllBytes( validatorFileFor(file).toPath() ), StandardCharsets.UTF_8 ).trim();
+        } catch ( IOException ex ) {
+            return null;
+        }
+    }
+
+    /**
+     * record the validator of the upstream response, so that the download can be
+     * resumed if it is interrupted.
+     * @param validator the ETag or Last-Modified value, or null if none was provided.
+     * @throws IOException
+     */
+    public void setValidator( String validator ) throws IOException {
+        File f= partInfoFileFor(file);
+        if ( validator==null ) {
+            f.delete();
+        } else {
+            Files.write( f.toPath(), validator.getBytes(StandardCharsets.UTF_8) );
+        }
+    }
+
+    /**
+     * compress the file with gzip in the background after it is committed.
+     * @param compress true if the file should be compressed.
+     */
+    public void setCompress( boolean compress ) {
+        this.compress= compress;
+    }
+
+    /**
+     * the index to update when the file is replaced by the compressed file.
+     * @param index null or the index.
+     */
+    public void setIndex( CacheIndex index ) {
+        this.index= index;
+    }
+
+    /**
+     * return the temporary file which is being written.
+     * @return the temporary file
+     */
+    public File getPartFile() {
+        return partFile;
+    }
+
+    /**
+     * return the number of bytes in the file, including bytes from an earlier download which is being resumed.
+     * @return the number of bytes in the file
+     */
+    public long length() {
+        return length;
+    }
+
+    @Override
+    public void write( int b ) throws IOException {
+        out.write(b);
+        length++;
+    }
+
+    @Override
+    public void write( byte[] b, int off, int len ) throws IOException {
+        out.write( b, off, len );
+        length+= len;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    /**
+     * the file is complete, so sync it to the disk and move it to the cache file, holding
+     * the granule's write lock while the cache file is replaced.  When the file is to be 
+     * compressed, this is done afterwards in the background.
+     * @throws IOException
+     */
+    public void commit() throws IOException {
+        if ( closed ) throw new IOException("file is already closed: "+partFile);
+        closed= true;
+        out.flush();
+        out.getFD().sync();
+        out.close();
+        Lock lock= GranuleLocks.writeLock(file);
+        lock.lock();
+        try {
+            Files.move( partFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING );
+            File partInfoFile= partInfoFileFor(file);
+            if ( partInfoFile.exists() ) {
+                Files.move( partInfoFile.toPath(), validatorFileFor(file).toPath(), StandardCopyOption.REPLACE_EXISTING );
+            } else {
+                validatorFileFor(file).delete();
+            }
+        } finally {
+            lock.unlock();
+        }
+        if ( compress ) {
+            long committedLength= file.length();
+            long committedTime= file.lastModified();
+            compressor.execute( () -> compress( file, committedLength, committedTime, index ) );
+        }
+    }
+
+    /**
+     * replace the committed file with the file compressed with gzip, unless it has been replaced
+     * since it was committed.  The compressed file keeps the time of the committed file, so it is
+     * just as fresh.
+     * @param file the cache file
+     * @param committedLength the length of the file when it was committed.
+     * @param committedTime the time of the file when it was committed.
+     * @param index null or the index to update.
+     */
+    private static void compress( File file, long committedLength, long committedTime, CacheIndex index ) {
+        File gzFile= new File( file.getPath() + ".gz" + PART_SUFFIX );
+        try {
+            try ( FileInputStream in= new FileInputStream(file);
+                FileOutputStream fout= new FileOutputStream(gzFile) ) {
+                GZIPOutputStream gz= new GZIPOutputStream( fout, 65536 );
+                in.transferTo(gz);
+                gz.finish();
+                gz.flush();
+                fout.getFD().sync();
+            }
+            Lock lock= GranuleLocks.writeLock(file);
+            lock.lock();
+            try {
+                if ( file.length()!=committedLength || file.lastModified()!=committedTime ) {
+                    gzFile.delete(); // replaced while it was compressed.
+                    return;
+                }
+                Files.move( gzFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING );
+                file.setLastModified( committedTime );
+                if ( index!=null ) {
+                    index.update( file );
+                }
+            } finally {
+                lock.unlock();
+            }
+        } catch ( IOException ex ) {
+            gzFile.delete();
+            logger.log( Level.WARNING, "unable to compress "+file, ex );
+        }
+    }
+
+    /**
+     * the file is not complete.  The temporary file is kept only if the download can be resumed.
+     * @throws IOException
+     */
+    public void abort() throws IOException {
+        if ( closed ) return;
+        closed= true;
+        out.close();
+        if ( !partInfoFileFor(file).exists() ) {
+            partFile.delete();
+        }
+    }
+
+    /**
+     * close the file, which is the same as abort unless commit has been called.
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        abort();
+    }
+}
@@ -0,0 +1,244 @@
+
+package hapi.cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * In-memory index of the files in the cache, so that lookups need not stat the
+ * filesystem.  This is loaded once with a parallel scan of the cache directory,
+ * and then kept up to date as granules are written by TeeInputStreamProvider.
+ * <p>
+ * Files are keyed by their path, as in File.getPath().  The name of a data granule
+ * encodes its day, parameters and format, like 20240101,A,B.csv, and these are
+ * available from the entry.
+ * <p>
+ * Note the index does not see changes made to the cache by other processes, so
+ * callers must still handle FileNotFoundException when a file is opened.
+ * @author jbf
+ */
+public class CacheIndex {
+
+    private static final Logger logger= Logger.getLogger(CacheIndex.class.getName());
+
+    /**
+     * number of threads used to scan the directories, which is more than the number of
+     * processors because the scan is waiting for the filesystem.
+     */
+    private static final int SCAN_PARALLELISM= 16;
+
+    /**
+     * information about one file in the cache.
+     * @param size the size in bytes.
+     * @param lastModified the modification time in milliseconds since 1970.
+     * @param parameters the parameters in the file, or null if all parameters are present or this is not a data granule.
+     * @param format the format, which is the file extension, like "csv" or "binary" or "json".
+     */
+    public record Entry( long size, long lastModified, String[] parameters, String format ) {
+    }
+
+    private final Map<String,Entry> entries= new ConcurrentHashMap<>();
+
+    private final Set<String> directories= ConcurrentHashMap.newKeySet();
+
+    /**
+     * the names of the files in each directory, so that granules with other parameters can be found.
+     */
+    private final Map<String,Set<String>> directoryListings= new ConcurrentHashMap<>();
+
+    /**
+     * create an empty index
+     */
+    public CacheIndex() {
+    }
+
+    /**
+     * create an index, loading all the files found under the root.
+     * @param root the top of the cache
+     * @return the index
+     */
+    public static CacheIndex load( File root ) {
+        CacheIndex result= new CacheIndex();
+        if ( root.isDirectory() ) {
+            long t0= System.currentTimeMillis();
+            ForkJoinPool pool= new ForkJoinPool( SCAN_PARALLELISM );
+            try {
+                pool.invoke( result.new ScanAction( root ) );
+            } finally {
+                pool.shutdown();
+            }
+            logger.log( Level.FINE, "indexed {0} files in {1} ms",
+                new Object[] { result.entries.size(), System.currentTimeMillis()-t0 } );
+        }
+        return result;
+    }
+
+    /**
+     * scan one directory, forking a new action for each subdirectory.
+     */
+    private class ScanAction extends RecursiveAction {
+        private static final long serialVersionUID= 1L;
+        File dir;
+        ScanAction( File dir ) {
+            this.dir= dir;
+        }
+        @Override
+        protected void compute() {
+            directories.add( dir.getPath() );
+            List<ScanAction> subdirs= new ArrayList<>();
+            try ( DirectoryStream<Path> ds= Files.newDirectoryStream( dir.toPath() ) ) {
+                for ( Path p: ds ) {
+                    BasicFileAttributes attr= Files.readAttributes( p, BasicFileAttributes.class );
+                    File f= new File( dir, p.getFileName().toString() );
+                    if ( attr.isDirectory() ) {
+                        subdirs.add( new ScanAction( f ) );
+                    } else if ( attr.isRegularFile() && !CacheFileWriter.isTemporary( f.getName() ) 
+                            && !CsvTimeIndex.isIndexFile( f.getName() ) 
+                            && !CacheFileWriter.isValidatorFile( f.getName() ) ) {
+                        put( f, attr.size(), attr.lastModifiedTime().toMillis() );
+                    }
+                }
+            } catch ( IOException ex ) {
+                logger.log( Level.WARNING, "unable to scan "+dir, ex );
+            }
+            invokeAll( subdirs );
+        }
+    }
+
+    private void put( File f, long size, long lastModified ) {
+        String name= f.getName();
+        int idot= name.lastIndexOf('.');
+        String format= idot==-1 ? "" : name.substring(idot+1);
+        String base= idot==-1 ? name : name.substring(0,idot);
+        String[] parameters= null;
+        int icomma= base.indexOf(',');
+        if ( icomma>-1 ) {
+            parameters= base.substring(icomma+1).split(",");
+        }
+        entries.put( f.getPath(), new Entry( size, lastModified, parameters, format ) );
+        directoryListings.computeIfAbsent( f.getParent(), (k) -> ConcurrentHashMap.newKeySet() ).add( name );
+    }
+
+    /**
+     * return the entry for the file, or null if the file is not in the cache.
+     * @param f the file
+     * @return the entry or null.
+     */
+    public Entry get( File f ) {
+        return entries.get( f.getPath() );
+    }
+
+    /**
+     * return true if the file is in the cache and was modified after the time.
+     * @param f the file
+     * @param lastModifiedRequirement milliseconds since 1970.
+     * @return true if the file can be used.
+     */
+    public boolean isFresh( File f, long lastModifiedRequirement ) {
+        Entry e= entries.get( f.getPath() );
+        return e!=null && e.lastModified()>lastModifiedRequirement;
+    }
+
+    /**
+     * update the entry for a file which has just been written.  This is the
+     * only place the filesystem is checked after the index is loaded.
+     * @param f the file
+     */
+    public void update( File f ) {
+        if ( f.exists() ) {
+            put( f, f.length(), f.lastModified() );
+            directories.add( f.getParent() );
+        } else {
+            remove( f );
+        }
+    }
+
+    /**
+     * remove the file from the index, for example when it has been deleted.
+     * @param f the file
+     */
+    public void remove( File f ) {
+        if ( entries.remove( f.getPath() )!=null ) {
+            Set<String> names= directoryListings.get( f.getParent() );
+            if ( names!=null ) names.remove( f.getName() );
+        }
+    }
+
+    /**
+     * return the files in the directory whose names start with the prefix, for example
+     * all the granules for one day.
+     * @param dir the directory
+     * @param prefix the prefix, for example "20240101"
+     * @return the files, which may be empty.
+     */
+    public List<File> list( File dir, String prefix ) {
+        Set<String> names= directoryListings.get( dir.getPath() );
+        List<File> result= new ArrayList<>();
+        if ( names!=null ) {
+            for ( String n: names ) {
+                if ( n.startsWith(prefix) ) {
+                    result.add( new File( dir, n ) );
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * return the files in the directory and in all the directories below it.
+     * @param dir the directory
+     * @return the files, which may be empty.
+     */
+    public List<File> listUnder( File dir ) {
+        String path= dir.getPath();
+        String prefix= path + File.separator;
+        List<File> result= new ArrayList<>();
+        for ( Map.Entry<String,Set<String>> e: directoryListings.entrySet() ) {
+            String d= e.getKey();
+            if ( d.equals(path) || d.startsWith(prefix) ) {
+                for ( String n: e.getValue() ) {
+                    result.add( new File( d, n ) );
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * return true if the directory is known to exist.
+     * @param dir the directory
+     * @return true if the directory is known to exist.
+     */
+    public boolean hasDirectory( File dir ) {
+        return directories.contains( dir.getPath() );
+    }
+
+    /**
+     * record that the directory exists.
+     * @param dir the directory
+     */
+    public void addDirectory( File dir ) {
+        directories.add( dir.getPath() );
+    }
+
+    /**
+     * return the number of files in the index.
+     * @return the number of files in the index.
+     */
+    public int size() {
+        return entries.size();
+    }
+}
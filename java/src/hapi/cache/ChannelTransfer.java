@@ -0,0 +1,64 @@
+
+package hapi.cache;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * send the bytes of an InputStream to a channel, such as stdout or a socket.  When
+ * the stream reads from a file in the cache, FileChannel.transferTo is used, so the
+ * operating system can send the file (sendfile) without copying it through the Java heap.
+ * Other streams are copied as usual.
+ * @author jbf
+ */
+public class ChannelTransfer {
+
+    private ChannelTransfer() {
+    }
+
+    /**
+     * send the remaining bytes of the stream to the channel.  The stream is not closed.
+     * @param in the stream, possibly a FileInputStream, FileRegionInputStream, or ConcatenateInputStream.
+     * @param out the channel
+     * @return the number of bytes sent.
+     * @throws IOException
+     */
+    public static long transfer( InputStream in, WritableByteChannel out ) throws IOException {
+        if ( in instanceof FileRegionInputStream ) {
+            return ((FileRegionInputStream)in).transferTo( out );
+        } else if ( in instanceof ConcatenateInputStream ) {
+            return ((ConcatenateInputStream)in).transferTo( out );
+        } else if ( in.getClass()==FileInputStream.class || in instanceof GzipFileInputStream ) {
+            FileChannel channel= ((FileInputStream)in).getChannel();
+            long position= channel.position();
+            long n= transfer( channel, position, channel.size()-position, out );
+            channel.position( position+n );
+            return n;
+        } else {
+            return in.transferTo( Channels.newOutputStream(out) );
+        }
+    }
+
+    /**
+     * send count bytes of the file starting at position to the channel.
+     * @param channel the file
+     * @param position the offset of the first byte
+     * @param count the number of bytes
+     * @param out the channel
+     * @return the number of bytes sent, which is less than count only if the file is shorter.
+     * @throws IOException
+     */
+    public static long transfer( FileChannel channel, long position, long count, WritableByteChannel out ) throws IOException {
+        long total= 0;
+        while ( total<count ) {
+            long n= channel.transferTo( position+total, count-total, out );
+            if ( n<=0 ) break;
+            total+= n;
+        }
+        return total;
+    }
+}
@@ -0,0 +1,453 @@
+
+package hapi.cache;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import org.codehaus.jettison.json.JSONException;
+import org.codehaus.jettison.json.JSONObject;
+import org.hapiserver.TimeUtil;
+
+/**
+ * Granule stored by columns, rather than as the records of the HAPI response.  Each
+ * parameter is kept in its own compressed block, so that a request for a few parameters
+ * reads and decompresses only those blocks.  Times are kept as the differences between
+ * successive times in nanoseconds, which compress very well for data with a regular cadence,
+ * and doubles and ints are kept in the little-endian form of HAPI binary.  When the times
+ * cannot be reproduced exactly from nanoseconds, they are kept as strings.
+ * <p>
+ * The file has a header with the info of the parameters stored, the number of records, and
+ * the location of each block, followed by the blocks, which are compressed with Deflater.
+ * These files have the extension ".hcol", and are read with {@link #openInputStream}, which
+ * provides HAPI binary records for any subset of the parameters and time range.
+ * @author jbf
+ */
+public class ColumnarGranule {
+
+    /**
+     * the file extension, which is used where the format would be.
+     */
+    public static final String EXTENSION= "hcol";
+
+    private static final int MAGIC= 0x48434f4c; // "HCOL"
+    private static final int VERSION= 1;
+
+    private static final byte TIME_NANOS= 0;
+    private static final byte TIME_STRINGS= 1;
+
+    private static final int BUFFER_SIZE= 65536;
+
+    private final JSONObject info;
+    private final int nrec;
+    private final long[] blockOffsets;
+    private final int[] blockLengths;
+    private final int[] rawLengths;
+    private final File file;
+
+    /**
+     * the layout of the records of all the parameters in the granule.
+     */
+    private final RecordLayout layout;
+
+    private ColumnarGranule( File file, JSONObject info, int nrec, long[] blockOffsets, int[] blockLengths, int[] rawLengths ) {
+        this.file= file;
+        this.info= info;
+        this.nrec= nrec;
+        this.blockOffsets= blockOffsets;
+        this.blockLengths= blockLengths;
+        this.rawLengths= rawLengths;
+        this.layout= RecordLayout.of(info);
+    }
+
+    /**
+     * return the info for the parameters in the granule.
+     * @return the info
+     */
+    public JSONObject getInfo() {
+        return info;
+    }
+
+    /**
+     * return the layout of the records of all the parameters in the granule.
+     * @return the layout
+     */
+    public RecordLayout getLayout() {
+        return layout;
+    }
+
+    /**
+     * return the number of records in the granule.
+     * @return the number of records
+     */
+    public int getRecordCount() {
+        return nrec;
+    }
+
+    /**
+     * read the header of the granule.
+     * @param file the .hcol file
+     * @return the granule, which can be used to read the parameters.
+     * @throws IOException
+     */
+    public static ColumnarGranule read( File file ) throws IOException {
+        try ( RandomAccessFile raf= new RandomAccessFile( file, "r" ) ) {
+            if ( raf.readInt()!=MAGIC || raf.readInt()!=VERSION ) {
+                throw new IOException("not a columnar granule: "+file);
+            }
+            byte[] infoBytes= new byte[raf.readInt()];
+            raf.readFully(infoBytes);
+            JSONObject info= new JSONObject( new String( infoBytes, StandardCharsets.UTF_8 ) );
+            int nrec= raf.readInt();
+            int ncol= raf.readInt();
+            long[] offsets= new long[ncol];
+            int[] blockLengths= new int[ncol];
+            int[] rawLengths= new int[ncol];
+            for ( int i=0; i<ncol; i++ ) {
+                offsets[i]= raf.readLong();
+                blockLengths[i]= raf.readInt();
+                rawLengths[i]= raf.readInt();
+            }
+            long dataStart= raf.getFilePointer();
+            for ( int i=0; i<ncol; i++ ) {
+                offsets[i]+= dataStart;
+            }
+            return new ColumnarGranule( file, info, nrec, offsets, blockLengths, rawLengths );
+        } catch ( JSONException | IllegalArgumentException ex ) {
+            throw new IOException( "unable to read info of "+file, ex );
+        }
+    }
+
+    /**
+     * return the pattern which formats times like the time, or null if times like this are not supported.
+     */
+    private static String timePattern( String time ) {
+        String pattern;
+        int i;
+        if ( time.matches("\\d{4}-\\d{2}-\\d{2}T.*") ) {
+            pattern= "uuuu-MM-dd'T'";
+            i= 11;
+        } else if ( time.matches("\\d{4}-\\d{3}T.*") ) {
+            pattern= "uuuu-DDD'T'";
+            i= 9;
+        } else {
+            return null;
+        }
+        String rest= time.substring(i);
+        boolean z= rest.endsWith("Z");
+        if ( z ) rest= rest.substring(0,rest.length()-1);
+        String full= "HH:mm:ss.SSSSSSSSS";
+        if ( rest.length()>full.length() || rest.length()==0 ) {
+            return null;
+        }
+        return pattern + full.substring(0,rest.length()) + ( z ? "'Z'" : "" );
+    }
+
+    /**
+     * return the nanoseconds since 1970 for the time.
+     */
+    private static long toNanos( String time ) {
+        int[] tt= TimeUtil.isoTimeToArray(time);
+        long days= TimeUtil.julianDay( tt[0], tt[1], tt[2] ) - 2440588;
+        long seconds= days*86400 + tt[3]*3600 + tt[4]*60 + tt[5];
+        return seconds*1000000000L + tt[6];
+    }
+
+    private static String fromNanos( long nanos, DateTimeFormatter formatter ) {
+        long seconds= Math.floorDiv( nanos, 1000000000L );
+        int nano= (int)Math.floorMod( nanos, 1000000000L );
+        return LocalDateTime.ofEpochSecond( seconds, nano, ZoneOffset.UTC ).format(formatter);
+    }
+
+    private static byte[] deflate( byte[] raw ) {
+        Deflater deflater= new Deflater();
+        try {
+            deflater.setInput(raw);
+            deflater.finish();
+            ByteArrayOutputStream out= new ByteArrayOutputStream( raw.length/4+64 );
+            byte[] buf= new byte[BUFFER_SIZE];
+            while ( !deflater.finished() ) {
+                int n= deflater.deflate(buf);
+                out.write( buf, 0, n );
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * write the HAPI binary records into a new columnar granule.  The file is written
+     * atomically, so readers will not see a partial file.
+     * @param info the info describing the records
+     * @param records the HAPI binary records, which are read to the end but not closed.
+     * @param file the .hcol file
+     * @throws IOException
+     */
+    public static void write( JSONObject info, InputStream records, File file ) throws IOException {
+        RecordLayout layout= RecordLayout.of(info);
+        int recLength= layout.recordLength();
+        int ncol= layout.parameterCount();
+        int timeLength= layout.timeLength();
+        ByteArrayOutputStream[] columns= new ByteArrayOutputStream[ncol];
+        for ( int i=0; i<ncol; i++ ) columns[i]= new ByteArrayOutputStream();
+
+        byte[] rec= new byte[recLength];
+        long[] nanos= new long[1024];
+        String pattern= null;
+        DateTimeFormatter formatter= null;
+        boolean useNanos= true;
+        int nrec= 0;
+        while ( records.readNBytes( rec, 0, recLength )==recLength ) {
+            for ( int i=0; i<ncol; i++ ) {
+                columns[i].write( rec, layout.offset(i), layout.length(i) );
+            }
+            if ( useNanos ) {
+                int end= 0;
+                while ( end<timeLength && rec[end]!=0 ) end++;
+                String time= new String( rec, 0, end, StandardCharsets.US_ASCII );
+                if ( nrec==0 ) {
+                    pattern= timePattern(time);
+                    formatter= pattern==null ? null : DateTimeFormatter.ofPattern(pattern);
+                }
+                try {
+                    if ( formatter==null ) throw new IllegalArgumentException("unsupported time format");
+                    long t= toNanos(time);
+                    if ( !fromNanos( t, formatter ).equals(time) ) throw new IllegalArgumentException("time does not round trip");
+                    if ( nrec==nanos.length ) nanos= Arrays.copyOf( nanos, nanos.length*2 );
+                    nanos[nrec]= t;
+                } catch ( RuntimeException ex ) {
+                    useNanos= false;
+                }
+            }
+            nrec++;
+        }
+
+        byte[][] raw= new byte[ncol][];
+        ByteArrayOutputStream timeBlock= new ByteArrayOutputStream();
+        DataOutputStream dos= new DataOutputStream(timeBlock);
+        if ( useNanos && nrec>0 ) {
+            dos.writeByte( TIME_NANOS );
+            dos.writeUTF( pattern );
+            long last= 0;
+            for ( int i=0; i<nrec; i++ ) {
+                dos.writeLong( nanos[i]-last );
+                last= nanos[i];
+            }
+        } else {
+            dos.writeByte( TIME_STRINGS );
+            columns[0].writeTo(dos);
+        }
+        dos.flush();
+        raw[0]= timeBlock.toByteArray();
+        for ( int i=1; i<ncol; i++ ) {
+            raw[i]= columns[i].toByteArray();
+        }
+
+        byte[][] blocks= new byte[ncol][];
+        for ( int i=0; i<ncol; i++ ) {
+            blocks[i]= deflate( raw[i] );
+        }
+
+        try ( CacheFileWriter w= new CacheFileWriter( file, false ) ) {
+            DataOutputStream out= new DataOutputStream(w);
+            byte[] infoBytes= info.toString().getBytes(StandardCharsets.UTF_8);
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(infoBytes.length);
+            out.write(infoBytes);
+            out.writeInt(nrec);
+            out.writeInt(ncol);
+            long offset= 0;
+            for ( int i=0; i<ncol; i++ ) {
+                out.writeLong(offset);
+                out.writeInt(blocks[i].length);
+                out.writeInt(raw[i].length);
+                offset+= blocks[i].length;
+            }
+            for ( int i=0; i<ncol; i++ ) {
+                out.write(blocks[i]);
+            }
+            out.flush();
+            w.commit();
+        }
+    }
+
+    /**
+     * read and decompress the block for the column.
+     */
+    private byte[] readBlock( RandomAccessFile raf, int col ) throws IOException {
+        byte[] compressed= new byte[blockLengths[col]];
+        raf.seek( blockOffsets[col] );
+        raf.readFully(compressed);
+        Inflater inflater= new Inflater();
+        try {
+            inflater.setInput(compressed);
+            byte[] raw= new byte[rawLengths[col]];
+            int n= 0;
+            while ( n<raw.length && !inflater.finished() ) {
+                int k= inflater.inflate( raw, n, raw.length-n );
+                if ( k==0 && ( inflater.needsInput() || inflater.needsDictionary() ) ) break;
+                n+= k;
+            }
+            if ( n!=raw.length ) throw new IOException("column "+col+" is truncated in "+file);
+            return raw;
+        } catch ( DataFormatException ex ) {
+            throw new IOException( "column "+col+" is corrupt in "+file, ex );
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * return the times, as the fixed-length strings of HAPI binary.
+     */
+    private byte[] readTimes( RandomAccessFile raf ) throws IOException {
+        byte[] raw= readBlock( raf, 0 );
+        int timeLength= layout.timeLength();
+        DataInputStream in= new DataInputStream( new ByteArrayInputStream(raw) );
+        byte mode= in.readByte();
+        if ( mode==TIME_STRINGS ) {
+            return Arrays.copyOfRange( raw, 1, raw.length );
+        }
+        DateTimeFormatter formatter= DateTimeFormatter.ofPattern( in.readUTF() );
+        byte[] result= new byte[ nrec*timeLength ];
+        long t= 0;
+        for ( int i=0; i<nrec; i++ ) {
+            t+= in.readLong();
+            byte[] s= fromNanos( t, formatter ).getBytes(StandardCharsets.US_ASCII);
+            System.arraycopy( s, 0, result, i*timeLength, Math.min( s.length, timeLength ) );
+        }
+        return result;
+    }
+
+    /**
+     * return the index of the first record whose time is not before the time.
+     */
+    private int lowerBound( byte[] times, int timeLength, byte[] time ) {
+        int lo= 0;
+        int hi= nrec;
+        while ( lo<hi ) {
+            int mid= ( lo + hi ) >>> 1;
+            int cmp= 0;
+            int n= Math.min( timeLength, time.length );
+            for ( int i=0; i<n && cmp==0; i++ ) {
+                cmp= ( times[mid*timeLength+i] & 0xFF ) - ( time[i] & 0xFF );
+            }
+            if ( cmp<0 ) {
+                lo= mid+1;
+            } else {
+                hi= mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * return the HAPI binary records for the parameters and time range.  Only the blocks of
+     * the parameters requested are read.
+     * @param parameterNames the parameters, or null for all parameters.  Time is always included.
+     * @param start the start time, or null for all records.
+     * @param stop the stop time, or null for all records.
+     * @return the HAPI binary records, described by the info with only these parameters.
+     * @throws IOException
+     */
+    public InputStream openInputStream( String[] parameterNames, String start, String stop ) throws IOException {
+        int[] fields;
+        if ( parameterNames==null ) {
+            fields= new int[layout.parameterCount()];
+            for ( int i=0; i<fields.length; i++ ) fields[i]= i;
+        } else {
+            fields= layout.indices( parameterNames );
+        }
+        byte[][] columns= new byte[fields.length][];
+        int first= 0;
+        int last= nrec;
+        try ( RandomAccessFile raf= new RandomAccessFile( file, "r" ) ) {
+            byte[] times= readTimes( raf );
+            columns[0]= times;
+            if ( start!=null && nrec>0 ) {
+                int timeLength= layout.timeLength();
+                first= lowerBound( times, timeLength, layout.formatTime( times, 0, start ) );
+                last= Math.max( first, lowerBound( times, timeLength, layout.formatTime( times, 0, stop ) ) );
+            }
+            for ( int i=1; i<fields.length; i++ ) {
+                columns[i]= first<last ? readBlock( raf, fields[i] ) : new byte[0];
+            }
+        }
+        int[] colLengths= new int[fields.length];
+        for ( int i=0; i<fields.length; i++ ) {
+            colLengths[i]= layout.length( fields[i] );
+        }
+        return new RecordInputStream( columns, colLengths, first, last );
+    }
+
+    /**
+     * assembles the HAPI binary records from the columns.
+     */
+    private static class RecordInputStream extends InputStream {
+
+        byte[][] columns;
+        int[] colLengths;
+        int recLength;
+        int irec;
+        int last;
+        byte[] outBuf;
+        int outPos= 0;
+        int outLimit= 0;
+
+        RecordInputStream( byte[][] columns, int[] colLengths, int first, int last ) {
+            this.columns= columns;
+            this.colLengths= colLengths;
+            for ( int l: colLengths ) recLength+= l;
+            this.irec= first;
+            this.last= last;
+            outBuf= new byte[ Math.max( 1, BUFFER_SIZE / Math.max(1,recLength) ) * recLength ];
+        }
+
+        private void fill() {
+            int k= 0;
+            while ( irec<last && k+recLength<=outBuf.length ) {
+                for ( int i=0; i<columns.length; i++ ) {
+                    System.arraycopy( columns[i], irec*colLengths[i], outBuf, k, colLengths[i] );
+                    k+= colLengths[i];
+                }
+                irec++;
+            }
+            outPos= 0;
+            outLimit= k;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if ( len==0 ) return 0;
+            if ( outPos==outLimit ) {
+                if ( irec==last ) return -1;
+                fill();
+            }
+            int ll= Math.min( len, outLimit-outPos );
+            System.arraycopy( outBuf, outPos, b, off, ll );
+            outPos+= ll;
+            return ll;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b= new byte[1];
+            int bytesRead= read( b, 0, 1 );
+            return bytesRead==-1 ? -1 : ( b[0] & 0xFF );
+        }
+    }
+}
@@ -1,56 +1,104 @@
 
 package hapi.cache;
 
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.CompletableFuture;
 
+/**
+ * reads the streams of the providers one after another.  While one stream is
+ * read, the next is opened in the background, so that the client does not wait
+ * for it to be opened (for example for its download) when it gets there.
+ * @author jbf
+ */
 public class ConcatenateInputStream extends InputStream {
 
     private final InputStreamProvider[] streams;
     private int currentStreamIndex = 0;
     private InputStream currentStream= null;
+    
+    /**
+     * the stream after the current stream, which is being opened in the background.
+     */
+    private CompletableFuture<InputStream> nextStream= null;
+    
+    /**
+     * closed along with this stream, or null.
+     */
+    private Closeable resource= null;
 
     public ConcatenateInputStream(InputStreamProvider... streams) {
         this.streams = streams;
     }
+    
+    /**
+     * close the resource when this stream is closed, like the downloads of the
+     * streams which have not been read yet.
+     * @param resource the resource
+     */
+    public void closeWhenClosed( Closeable resource ) {
+        this.resource= resource;
+    }
+
+    /**
+     * close the current stream and open the next one.
+     * @return false if there are no more streams.
+     */
+    private boolean nextStream() throws IOException {
+        if ( currentStream!=null ) {
+            currentStream.close();
+            currentStream= null;
+            currentStreamIndex++;
+        }
+        if ( currentStreamIndex < streams.length ) {
+            if ( nextStream!=null ) {
+                CompletableFuture<InputStream> opening= nextStream;
+                nextStream= null;
+                currentStream= BackgroundStreams.get( opening );
+            } else {
+                currentStream= streams[currentStreamIndex].openInputStream();
+            }
+            if ( currentStreamIndex+1 < streams.length ) {
+                nextStream= BackgroundStreams.open( streams[currentStreamIndex+1] );
+            }
+            return true;
+        } else {
+            return false;
+        }
+    }
 
     @Override
     public int read() throws IOException {
-        if ( currentStream==null ) {
-            currentStream= streams[currentStreamIndex].openInputStream();
+        if ( currentStream==null && !nextStream() ) {
+            return -1;
         }
-        while (currentStreamIndex < streams.length) {
+        while ( true ) {
             int b = currentStream.read();
             if (b != -1) {
                 return b;
             }
-            currentStream.close();
-            currentStreamIndex++;
-            if ( currentStreamIndex < streams.length ) {
-                currentStream= streams[currentStreamIndex].openInputStream();
+            if ( !nextStream() ) {
+                return -1;
             }
         }
-        return -1;
     }
 
     @Override
     public int read(byte[] b, int off, int len) throws IOException {
-        if ( currentStream==null ) {
-            currentStream= streams[currentStreamIndex].openInputStream();
+        if ( currentStream==null && !nextStream() ) {
+            return -1;
         }
-        while ( currentStreamIndex<streams.length ) {
+        while ( true ) {
             int l= currentStream.read( b, off, len );
-            if ( l==-1 ) {
-                currentStream.close();
-                currentStreamIndex++;
-                if ( currentStreamIndex < streams.length ) {
-                   currentStream= streams[currentStreamIndex].openInputStream();
-                }
-            } else {
+            if ( l!=-1 ) {
                 return l;
             }
+            if ( !nextStream() ) {
+                return -1;
+            }
         }
-        return -1;
     }
 
     @Override
@@ -58,8 +106,42 @@ public class ConcatenateInputStream extends InputStream {
         return read( b, 0, b.length );
     }
     
+    /**
+     * send the remaining bytes of each stream to the channel, so that streams
+     * reading cache files can use FileChannel.transferTo.
+     * @param out the channel
+     * @return the number of bytes sent.
+     * @throws IOException
+     * @see ChannelTransfer
+     */
+    public long transferTo( WritableByteChannel out ) throws IOException {
+        long total= 0;
+        if ( currentStream==null && !nextStream() ) {
+            return 0;
+        }
+        do {
+            total+= ChannelTransfer.transfer( currentStream, out );
+        } while ( nextStream() );
+        return total;
+    }
+    
     @Override
     public void close() throws IOException {
-
+        if ( nextStream!=null ) {
+            BackgroundStreams.abandon( nextStream );
+            nextStream= null;
+        }
+        try {
+            if ( currentStream!=null ) {
+                currentStream.close(); // this allows a download into the cache to be completed.
+                currentStream= null;
+            }
+        } finally {
+            currentStreamIndex= streams.length;
+            if ( resource!=null ) {
+                resource.close();
+                resource= null;
+            }
+        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,236 @@
+
+package hapi.cache;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Index of the byte offsets of the records in a CSV cache file, so that time
+ * subsets can seek to the first record of interest rather than reading the file from the
+ * beginning.  The records are grouped into buckets by the time truncated to the minute,
+ * like "2024-01-01T10:05", and the index has the offset of the first record of each bucket.
+ * Buckets which start within MIN_BUCKET_SPACING bytes of the previous one are not
+ * listed, so that the index stays small for granules of a month or a year.
+ * <p>
+ * The index is kept in a sidecar file next to the CSV file, with the extension ".idx".
+ * The first line has the length of the CSV file, the time of its first record, and the
+ * version of the file, and each following line has a bucket and its offset.  The version 
+ * is the validator (ETag or Last-Modified) of the response which provided the file, which is
+ * kept when the file is revalidated, or else the time the file was last modified.  The 
+ * index is ignored when the length or the version does not match, so it cannot be used 
+ * with a different version of the file, even one of the same length.
+ * @author jbf
+ */
+public class CsvTimeIndex {
+
+    /**
+     * suffix for the index file.
+     */
+    public static final String SUFFIX= ".idx";
+
+    /**
+     * the number of bytes between the buckets listed in the index.
+     */
+    private static final int MIN_BUCKET_SPACING= 16384;
+
+    private final String firstTime;
+    private final String[] buckets;
+    private final long[] offsets;
+
+    private CsvTimeIndex( String firstTime, String[] buckets, long[] offsets ) {
+        this.firstTime= firstTime;
+        this.buckets= buckets;
+        this.offsets= offsets;
+    }
+
+    /**
+     * return the index file for the CSV file.
+     * @param file the CSV file
+     * @return the index file
+     */
+    public static File indexFileFor( File file ) {
+        return new File( file.getPath() + SUFFIX );
+    }
+
+    /**
+     * return true if the name is an index file.
+     * @param name the file name
+     * @return true if the name is an index file.
+     */
+    public static boolean isIndexFile( String name ) {
+        return name.endsWith(SUFFIX);
+    }
+
+    /**
+     * return the version of the CSV file, which identifies its contents.
+     * @param file the CSV file
+     * @return the validator of the file, or else the time it was last modified.
+     */
+    private static String versionOf( File file ) {
+        String validator= CacheFileWriter.storedValidator(file);
+        return validator!=null ? validator : String.valueOf( file.lastModified() );
+    }
+
+    /**
+     * return the bucket containing the time, which is the time up to the minutes.
+     * @param time the isotime, like 2024-01-01T10:05:03.123Z
+     * @return the bucket, like 2024-01-01T10:05
+     */
+    private static String bucketFor( String time ) {
+        int i= time.indexOf(':');
+        if ( i>-1 ) i= time.indexOf( ':', i+1 );
+        return i==-1 ? time : time.substring(0,i);
+    }
+
+    /**
+     * read the index for the CSV file.
+     * @param file the CSV file
+     * @return the index, or null if there is no index or it is not for this version of the file.
+     */
+    public static CsvTimeIndex read( File file ) {
+        File indexFile= indexFileFor(file);
+        if ( !indexFile.exists() ) {
+            return null;
+        }
+        try ( BufferedReader r= new BufferedReader( new FileReader( indexFile, StandardCharsets.US_ASCII ) ) ) {
+            String line= r.readLine();
+            if ( line==null ) return null;
+            String[] ss= line.split( " ", 3 ); // the version may contain spaces.
+            if ( ss.length!=3 || Long.parseLong(ss[0])!=file.length() || !ss[2].equals( versionOf(file) ) ) {
+                return null;
+            }
+            String firstTime= ss[1];
+            List<String> buckets= new ArrayList<>();
+            List<Long> offsets= new ArrayList<>();
+            while ( ( line= r.readLine() )!=null ) {
+                int i= line.indexOf(' ');
+                buckets.add( line.substring(0,i) );
+                offsets.add( Long.valueOf( line.substring(i+1) ) );
+            }
+            long[] aoffsets= new long[offsets.size()];
+            for ( int i=0; i<aoffsets.length; i++ ) aoffsets[i]= offsets.get(i);
+            return new CsvTimeIndex( firstTime, buckets.toArray(new String[buckets.size()]), aoffsets );
+        } catch ( IOException | RuntimeException ex ) {
+            return null;
+        }
+    }
+
+    /**
+     * return the time of the first record, which shows the time format used in the file.
+     * @return the time of the first record
+     */
+    public String getFirstTime() {
+        return firstTime;
+    }
+
+    /**
+     * return an offset where all records before it are before the start time.
+     * @param start the start time, in the same format as the file.
+     * @return the byte offset
+     */
+    public long startOffset( String start ) {
+        long result= 0;
+        for ( int i=0; i<buckets.length; i++ ) {
+            if ( buckets[i].compareTo(start)<=0 ) {
+                result= offsets[i];
+            } else {
+                break;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * return an offset where all records after it are at or after the stop time.
+     * @param stop the stop time, in the same format as the file.
+     * @return the byte offset, or -1 if the records up to the end of the file must be read.
+     */
+    public long stopOffset( String stop ) {
+        for ( int i=0; i<buckets.length; i++ ) {
+            if ( buckets[i].compareTo(stop)>=0 ) {
+                return offsets[i];
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * builds the index as the bytes of the CSV file are written.
+     */
+    public static class Builder {
+
+        private long position= 0;
+        private long lineStart= 0;
+        private boolean inTime= true;
+        private final StringBuilder time= new StringBuilder();
+        private String firstTime= null;
+        private String lastBucket= null;
+        private long lastOffset= -MIN_BUCKET_SPACING;
+        private final StringBuilder index= new StringBuilder();
+
+        /**
+         * add bytes which were written to the CSV file.
+         * @param b the bytes
+         * @param off the offset of the first byte
+         * @param len the number of bytes
+         */
+        public void update( byte[] b, int off, int len ) {
+            for ( int i=off; i<off+len; i++ ) {
+                byte c= b[i];
+                if ( inTime ) {
+                    if ( c==',' || c=='\n' ) {
+                        endTime();
+                        inTime= false;
+                    } else if ( time.length()<64 ) {
+                        time.append( (char)c );
+                    }
+                }
+                if ( c=='\n' ) {
+                    lineStart= position + ( i-off ) + 1;
+                    inTime= true;
+                    time.setLength(0);
+                }
+            }
+            position+= len;
+        }
+
+        private void endTime() {
+            if ( time.length()==0 || ( time.charAt(0)!='1' && time.charAt(0)!='2' ) ) {
+                return;
+            }
+            String t= time.toString().trim();
+            if ( firstTime==null ) {
+                firstTime= t;
+            }
+            String bucket= bucketFor(t);
+            if ( !bucket.equals(lastBucket) ) {
+                if ( lineStart-lastOffset>=MIN_BUCKET_SPACING ) {
+                    index.append(bucket).append(' ').append(lineStart).append('\n');
+                    lastOffset= lineStart;
+                }
+                lastBucket= bucket;
+            }
+        }
+
+        /**
+         * write the index for the CSV file, which must have been committed with all the bytes.
+         * @param file the CSV file
+         * @throws IOException
+         */
+        public void write( File file ) throws IOException {
+            if ( firstTime==null ) {
+                return;
+            }
+            String s= String.valueOf(position) + ' ' + firstTime + ' ' + versionOf(file) + '\n' + index;
+            try ( CacheFileWriter w= new CacheFileWriter( indexFileFor(file), false ) ) {
+                w.write( s.getBytes(StandardCharsets.US_ASCII) );
+                w.commit();
+            }
+        }
+    }
+}
@@ -0,0 +1,214 @@
+package hapi.cache;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Suppose the cache has a granule in HAPI CSV, and the client wants HAPI binary.
+ * This parses each CSV line into a fixed-length binary record, using the types
+ * of the parameters in the record layout.  Lines which are not records are dropped.
+ * @author jbf
+ * @see BinaryToCsvDataInputStream
+ */
+public class CsvToBinaryDataInputStream extends InputStream {
+
+    private static final int BUFFER_SIZE= 65536;
+
+    InputStream ins;
+
+    /**
+     * the type and length in bytes of each CSV column, from the layout.
+     */
+    RecordLayout.Type[] columnTypes;
+    int[] columnLengths;
+
+    int[] columnStart;
+    int[] columnEnd;
+
+    byte[] buf= new byte[BUFFER_SIZE];
+    int pos= 0;
+    int limit= 0;
+    boolean eof= false;
+
+    int recLength;
+    byte[] outBuf;
+    ByteBuffer out;
+    int outPos= 0;
+    int outLimit= 0;
+
+    /**
+     * @param layout the layout of the binary records
+     * @param ins the CSV stream
+     */
+    public CsvToBinaryDataInputStream( RecordLayout layout, InputStream ins ) {
+        this.ins= ins;
+        int ncol= layout.columnCount();
+        columnTypes= new RecordLayout.Type[ncol];
+        columnLengths= new int[ncol];
+        int icol= 0;
+        for ( int i=0; i<layout.parameterCount(); i++ ) {
+            for ( int j=0; j<layout.count(i); j++ ) {
+                columnTypes[icol]= layout.type(i);
+                columnLengths[icol]= layout.width(i);
+                icol++;
+            }
+        }
+        columnStart= new int[ncol];
+        columnEnd= new int[ncol];
+        recLength= layout.recordLength();
+        outBuf= new byte[ Math.max( 1, BUFFER_SIZE / recLength ) * recLength ];
+        out= ByteBuffer.wrap(outBuf).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * find the columns of the line starting at pos.
+     * @return the index of the newline ending the line, or -1 if the line is not complete in the buffer.
+     */
+    private int scanLine() throws IOException {
+        int col= 0;
+        columnStart[0]= pos;
+        boolean inQuote= false;
+        for ( int i=pos; i<limit; i++ ) {
+            byte c= buf[i];
+            if ( inQuote ) {
+                if ( c=='"' ) inQuote= false;
+            } else if ( c=='"' ) {
+                inQuote= true;
+            } else if ( c==',' ) {
+                if ( col<columnEnd.length ) columnEnd[col]= i;
+                col++;
+                if ( col<columnStart.length ) columnStart[col]= i+1;
+            } else if ( c=='\n' ) {
+                if ( col<columnEnd.length ) columnEnd[col]= ( i>pos && buf[i-1]=='\r' ) ? i-1 : i;
+                if ( col!=columnEnd.length-1 && ( buf[pos]=='1' || buf[pos]=='2' ) ) {
+                    throw new IOException("record has "+(col+1)+" fields, expected "+columnEnd.length );
+                }
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * write the string into the record, padded with nulls.
+     */
+    private void putString( int col, boolean unquote ) {
+        int s= columnStart[col];
+        int e= columnEnd[col];
+        int n= columnLengths[col];
+        byte[] bytes;
+        if ( unquote && e-s>=2 && buf[s]=='"' ) {
+            bytes= new String( buf, s+1, e-s-2, StandardCharsets.UTF_8 ).replace("\"\"","\"").getBytes(StandardCharsets.UTF_8);
+            s= 0;
+            e= bytes.length;
+        } else {
+            bytes= buf;
+        }
+        int len= Math.min( n, e-s );
+        int p= out.position();
+        System.arraycopy( bytes, s, outBuf, p, len );
+        Arrays.fill( outBuf, p+len, p+n, (byte)0 );
+        out.position( p+n );
+    }
+
+    private String columnString( int col ) {
+        return new String( buf, columnStart[col], columnEnd[col]-columnStart[col], StandardCharsets.US_ASCII ).trim();
+    }
+
+    /**
+     * convert the complete lines in the buffer, until the output buffer is full.
+     */
+    private void processLines() throws IOException {
+        out.clear();
+        while ( pos<limit && out.remaining()>=recLength ) {
+            int nl= scanLine();
+            if ( nl==-1 ) {
+                break;
+            }
+            if ( buf[pos]=='1' || buf[pos]=='2' ) {
+                for ( int col=0; col<columnTypes.length; col++ ) {
+                    switch ( columnTypes[col] ) {
+                        case ISOTIME -> putString( col, false );
+                        case STRING -> putString( col, true );
+                        case DOUBLE -> {
+                            String s= columnString(col);
+                            out.putDouble( s.length()==0 ? Double.NaN : Double.parseDouble(s) );
+                        }
+                        case INT -> out.putInt( Integer.parseInt( columnString(col) ) );
+                    }
+                }
+            }
+            pos= nl+1;
+        }
+        outPos= 0;
+        outLimit= out.position();
+    }
+
+    /**
+     * read more bytes into the buffer, moving the unprocessed bytes to the beginning.
+     */
+    private void fill() throws IOException {
+        if ( pos>0 ) {
+            System.arraycopy( buf, pos, buf, 0, limit-pos );
+            limit-= pos;
+            pos= 0;
+        }
+        if ( limit==buf.length ) {
+            buf= Arrays.copyOf( buf, buf.length*2 );
+        }
+        int bytesRead= ins.read( buf, limit, buf.length-limit );
+        if ( bytesRead==-1 ) {
+            eof= true;
+            if ( limit>0 ) { // last line has no newline.
+                if ( limit==buf.length ) buf= Arrays.copyOf( buf, buf.length+1 );
+                buf[limit++]= '\n';
+            }
+        } else {
+            limit+= bytesRead;
+        }
+    }
+
+    @Override
+    public int read(byte[] b) throws IOException {
+        return read( b, 0, b.length );
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if ( len==0 ) return 0;
+        while ( outPos==outLimit ) {
+            try {
+                processLines();
+            } catch ( NumberFormatException ex ) {
+                throw new IOException( "unable to parse CSV record", ex );
+            }
+            if ( outPos==outLimit ) {
+                if ( eof ) {
+                    return -1;
+                }
+                fill();
+            }
+        }
+        int ll= Math.min( len, outLimit-outPos );
+        System.arraycopy( outBuf, outPos, b, off, ll );
+        outPos+= ll;
+        return ll;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b= new byte[1];
+        int bytesRead= read( b, 0, 1 );
+        return bytesRead==-1 ? -1 : ( b[0] & 0xFF );
+    }
+
+    @Override
+    public void close() throws IOException {
+        ins.close();
+    }
+
+}
@@ -6,23 +6,82 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.GZIPInputStream;
 
 /**
- *
+ * provides the contents of a cache file, which are decompressed when the file
+ * is stored gzip compressed.
  * @author jbf
  */
 public class FileInputStreamProvider implements InputStreamProvider {
     private File file;
+    
+    /**
+     * Note the file is not checked here, since the cache index already knows
+     * it is there, and FileNotFoundException will be thrown when it is opened.
+     * @param f the file
+     * @throws FileNotFoundException 
+     */
     public FileInputStreamProvider( File f ) throws FileNotFoundException {
-        if ( !f.exists() ) {
-            throw new FileNotFoundException("file not found: "+f);
-        }
         this.file= f;
     }
 
+    /**
+     * return the file, so that readers can seek within it.
+     * @return the file
+     */
+    public File getFile() {
+        return file;
+    }
+    
+    /**
+     * return true if the file is gzip compressed, which is detected by its first two bytes.
+     * @param file the file
+     * @return true if the file is gzip compressed.
+     * @throws IOException 
+     */
+    public static boolean isGzip( File file ) throws IOException {
+        try ( FileInputStream fin= new FileInputStream(file) ) {
+            return isGzip( fin.getChannel() );
+        }
+    }
+    
+    private static boolean isGzip( FileChannel channel ) throws IOException {
+        ByteBuffer magic= ByteBuffer.allocate(2);
+        while ( magic.hasRemaining() && channel.read( magic, magic.position() )>0 );
+        return magic.position()==2 && ( magic.get(0) & 0xFF )==0x1f && ( magic.get(1) & 0xFF )==0x8b;
+    }
+    
     @Override
     public InputStream openInputStream() throws IOException {
-        return new FileInputStream(file);
+        return openInputStream( false );
+    }
+
+    /**
+     * open the file.  When the file is stored gzip compressed and the client accepts gzip, the 
+     * compressed bytes are returned as a {@link GzipFileInputStream}.  The file is opened once 
+     * and checked on the same descriptor, so the stream always matches how it was checked, 
+     * even when the file is replaced meanwhile.
+     * @param acceptGzip true if the compressed bytes can be returned.
+     * @return the stream
+     * @throws IOException 
+     */
+    public InputStream openInputStream( boolean acceptGzip ) throws IOException {
+        FileInputStream fin= new FileInputStream(file);
+        try {
+            if ( !isGzip( fin.getChannel() ) ) {
+                return fin;
+            } else if ( acceptGzip ) {
+                return new GzipFileInputStream( fin.getFD() );
+            } else {
+                return new GZIPInputStream( fin, 65536 );
+            }
+        } catch ( IOException ex ) {
+            fin.close();
+            throw ex;
+        }
     }
   
 }
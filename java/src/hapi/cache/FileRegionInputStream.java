@@ -0,0 +1,89 @@
+
+package hapi.cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * InputStream which reads the bytes of a file from a start offset up to an
+ * end offset, without reading the rest of the file.  The region can be sent to
+ * a channel without copying it through the Java heap.
+ * @author jbf
+ */
+public class FileRegionInputStream extends InputStream {
+
+    private final RandomAccessFile raf;
+    private long position;
+    private final long end;
+
+    /**
+     * @param file the file
+     * @param start the offset of the first byte
+     * @param end the offset after the last byte, or -1 for the end of the file.
+     * @throws IOException
+     */
+    public FileRegionInputStream( File file, long start, long end ) throws IOException {
+        this.raf= new RandomAccessFile( file, "r" );
+        this.end= end==-1 ? raf.length() : end;
+        this.position= start;
+        raf.seek(start);
+    }
+
+    @Override
+    public int read() throws IOException {
+        if ( position>=end ) {
+            return -1;
+        }
+        int b= raf.read();
+        if ( b!=-1 ) position++;
+        return b;
+    }
+
+    @Override
+    public int read( byte[] b, int off, int len ) throws IOException {
+        if ( position>=end ) {
+            return -1;
+        }
+        int bytesRead= raf.read( b, off, (int)Math.min( len, end-position ) );
+        if ( bytesRead>0 ) position+= bytesRead;
+        return bytesRead;
+    }
+
+    @Override
+    public long skip( long n ) throws IOException {
+        long s= Math.max( 0, Math.min( n, end-position ) );
+        position+= s;
+        raf.seek(position);
+        return s;
+    }
+
+    /**
+     * send the remaining bytes of the region to the channel, using FileChannel.transferTo.
+     * @param out the channel
+     * @return the number of bytes sent.
+     * @throws IOException
+     * @see ChannelTransfer
+     */
+    public long transferTo( WritableByteChannel out ) throws IOException {
+        if ( position>=end ) {
+            return 0;
+        }
+        long n= ChannelTransfer.transfer( raf.getChannel(), position, end-position, out );
+        position+= n;
+        raf.seek(position);
+        return n;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return (int)Math.min( Integer.MAX_VALUE, end-position );
+    }
+
+    @Override
+    public void close() throws IOException {
+        raf.close();
+    }
+}
@@ -0,0 +1,270 @@
+
+package hapi.cache;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * downloads cache granules in the background, so that while one granule is being
+ * sent to the client, the next few are already being loaded into the cache.  There
+ * is a small pool of worker threads for each remote host, so that no more than
+ * maxConnectionsPerHost downloads are made to any one HAPI server at a time.  The
+ * workers of a host end when they are idle for a while.
+ * @author jbf
+ */
+public class GranuleFetcher {
+
+    /**
+     * the time the workers of a host are kept when there is nothing to download.
+     */
+    private static final long IDLE_SECONDS= 10;
+
+    private static final int BUFFER_SIZE= 65536;
+
+    private final int maxConnectionsPerHost;
+
+    private final Map<String,ExecutorService> pools= new ConcurrentHashMap<>();
+
+    /**
+     * create the fetcher
+     * @param maxConnectionsPerHost the number of concurrent downloads allowed for each host.
+     */
+    public GranuleFetcher( int maxConnectionsPerHost ) {
+        if ( maxConnectionsPerHost<1 ) {
+            throw new IllegalArgumentException("maxConnectionsPerHost must be positive");
+        }
+        this.maxConnectionsPerHost= maxConnectionsPerHost;
+    }
+
+    /**
+     * return the pool of workers for the host, creating it if needed.
+     * @param url
+     * @return
+     */
+    private ExecutorService poolFor( URL url ) {
+        String host= url.getHost() + ":" + url.getPort();
+        return pools.computeIfAbsent( host, (k) -> {
+            ThreadPoolExecutor pool= new ThreadPoolExecutor( maxConnectionsPerHost, maxConnectionsPerHost, 
+                IDLE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), (r) -> {
+                Thread t= new Thread( r, "granuleFetcher-"+k );
+                t.setDaemon(true);
+                return t;
+            } );
+            pool.allowCoreThreadTimeOut(true);
+            return pool;
+        } );
+    }
+
+    /**
+     * start a download into the cache.  The upstream provider is read completely and
+     * then closed, so when it is a TeeInputStreamProvider the cache file is written.
+     * @param url the remote location, used to identify the host.
+     * @param upstream the provider which writes the cache file as it is read.
+     * @param cacheFile the file which will contain the granule when the download is complete.
+     * @return the provider for the granule, which reads the cache file as it is written.
+     */
+    public Download submit( URL url, InputStreamProvider upstream, File cacheFile ) {
+        Download d= new Download( upstream, cacheFile );
+        d.task= submit( url, () -> {
+            d.run();
+            return null;
+        } );
+        return d;
+    }
+
+    /**
+     * run a download on the pool of workers for the host.
+     * @param <T> the type of the result
+     * @param url the remote location, used to identify the host.
+     * @param task the download
+     * @return a Future which provides the result of the task.
+     */
+    public <T> Future<T> submit( URL url, Callable<T> task ) {
+        return poolFor(url).submit( task );
+    }
+
+    /**
+     * return a new ReadAhead, which is used to load the granules for one request.
+     * @return
+     */
+    public ReadAhead readAhead() {
+        return new ReadAhead();
+    }
+
+    /**
+     * A download into the cache on the pool of workers.  The client does not wait for the
+     * download to complete, but follows it once it is under way (see {@link InFlightDownload}), 
+     * reading the granule as it arrives.
+     */
+    public static class Download implements InputStreamProvider {
+
+        private final InputStreamProvider upstream;
+        private final File cacheFile;
+        private final CompletableFuture<Void> opened= new CompletableFuture<>();
+        private final CompletableFuture<File> done= new CompletableFuture<>();
+        private volatile boolean cancelled= false;
+        private Future<?> task;
+
+        private Download( InputStreamProvider upstream, File cacheFile ) {
+            this.upstream= upstream;
+            this.cacheFile= cacheFile;
+        }
+
+        private void run() {
+            try ( InputStream ins= upstream.openInputStream() ) {
+                opened.complete(null);
+                byte[] buf= new byte[BUFFER_SIZE];
+                while ( !cancelled && ins.read(buf)!=-1 ) {
+                    // the bytes are written to the cache file.
+                }
+            } catch ( IOException | RuntimeException ex ) {
+                opened.completeExceptionally(ex);
+                done.completeExceptionally(ex);
+                return;
+            }
+            if ( cancelled ) {
+                done.completeExceptionally( new IOException( "download was cancelled: "+cacheFile ) );
+            } else {
+                done.complete(cacheFile);
+            }
+        }
+
+        /**
+         * stop the download, unless other requests are following it.  A download which has not
+         * started is not made.
+         */
+        public void cancel() {
+            cancelled= true;
+            if ( task!=null ) {
+                task.cancel(false);
+            }
+            IOException ex= new IOException( "download was cancelled: "+cacheFile );
+            opened.completeExceptionally(ex); // in case it was never started.
+            done.completeExceptionally(ex);
+        }
+
+        @Override
+        public InputStream openInputStream() throws IOException {
+            BackgroundStreams.get( opened );
+            InputStream ins= InFlightDownload.follow( cacheFile );
+            if ( ins!=null ) {
+                return new ResumingInputStream( ins, upstream, cacheFile );
+            }
+            // the download was already complete, or the file was already in the cache.
+            return new FileInputStreamProvider( BackgroundStreams.get( done ) ).openInputStream();
+        }
+    }
+
+    /**
+     * The granules for one request, which are loaded in order.  When a granule is opened,
+     * the downloads for the next maxConnectionsPerHost granules are started, so
+     * there is a bounded window of downloads ahead of the client.  Output order
+     * is preserved, because the granules are read one after another, each as it is
+     * downloaded.  When the request is closed, the downloads which have not been read are
+     * cancelled, as are the downloads of runs of granules made for the request.
+     */
+    public class ReadAhead implements Closeable {
+
+        private final List<Granule> granules= new ArrayList<>();
+        private final List<GranuleSplitter> splitters= new ArrayList<>();
+        private int nextToSubmit= 0;
+        private boolean closed= false;
+
+        private class Granule implements InputStreamProvider {
+            URL url;
+            InputStreamProvider upstream;
+            File cacheFile;
+            int index;
+            Download download;
+
+            @Override
+            public InputStream openInputStream() throws IOException {
+                submitThrough( index + maxConnectionsPerHost );
+                Download d;
+                synchronized ( ReadAhead.this ) {
+                    d= download;
+                }
+                if ( d==null ) {
+                    throw new IOException( "request was closed: "+url );
+                }
+                return d.openInputStream();
+            }
+        }
+
+        /**
+         * add a granule to be loaded.
+         * @param url the remote location, used to identify the host.
+         * @param upstream the provider which writes the cache file as it is read.
+         * @param cacheFile the file which will contain the granule.
+         * @return the provider for the granule, which reads the granule as it is downloaded.
+         */
+        public InputStreamProvider add( URL url, InputStreamProvider upstream, File cacheFile ) {
+            Granule g= new Granule();
+            g.url= url;
+            g.upstream= upstream;
+            g.cacheFile= cacheFile;
+            synchronized ( this ) {
+                g.index= granules.size();
+                granules.add(g);
+            }
+            return g;
+        }
+
+        /**
+         * cancel the download of a run of granules when the request is closed.
+         * @param splitter the download, which is cancelled now if the request is already closed.
+         */
+        public void cancelWhenClosed( GranuleSplitter splitter ) {
+            synchronized ( this ) {
+                if ( !closed ) {
+                    splitters.add(splitter);
+                    return;
+                }
+            }
+            splitter.cancel();
+        }
+
+        /**
+         * start loading the first granules, without waiting for the client to get to them.
+         */
+        public void start() {
+            submitThrough( maxConnectionsPerHost-1 );
+        }
+
+        private synchronized void submitThrough( int index ) {
+            while ( !closed && nextToSubmit<=index && nextToSubmit<granules.size() ) {
+                Granule g= granules.get(nextToSubmit);
+                g.download= submit( g.url, g.upstream, g.cacheFile );
+                nextToSubmit++;
+            }
+        }
+
+        /**
+         * cancel the downloads, because the client will not read any more granules.
+         */
+        @Override
+        public synchronized void close() {
+            closed= true;
+            for ( int i=0; i<nextToSubmit; i++ ) {
+                granules.get(i).download.cancel();
+            }
+            for ( GranuleSplitter s: splitters ) {
+                s.cancel();
+            }
+        }
+    }
+}
@@ -0,0 +1,92 @@
+
+package hapi.cache;
+
+import java.io.File;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Locks for the granules (cache files), so that a file and its index entry are changed
+ * together.  Readers hold the read lock while they check that a granule is
+ * in the cache, and writers hold the write lock while they replace or remove it, so
+ * readers of completed granules do not wait for each other, and writers of the same
+ * granule take turns.  The locks are striped by the path of the file, so a
+ * fixed number of locks is shared by all the granules.
+ * <p>
+ * A granule which will be read by a stream is pinned until the stream is closed, so
+ * that it is not removed (for example when it is compacted) before the stream opens it.
+ * Locks are only held briefly, and never while a file is read or downloaded.
+ * @author jbf
+ */
+public class GranuleLocks {
+
+    private static final int STRIPES= 64;
+
+    private static final ReadWriteLock[] locks= new ReadWriteLock[STRIPES];
+
+    static {
+        for ( int i=0; i<STRIPES; i++ ) {
+            locks[i]= new ReentrantReadWriteLock();
+        }
+    }
+
+    /**
+     * the number of streams which will read each granule.
+     */
+    private static final Map<String,Integer> pins= new ConcurrentHashMap<>();
+
+    private GranuleLocks() {
+    }
+
+    private static ReadWriteLock lockFor( File file ) {
+        return locks[ Math.floorMod( file.getPath().hashCode(), STRIPES ) ];
+    }
+
+    /**
+     * return the lock held while checking that the file is in the cache.
+     * @param file the cache file
+     * @return the read lock
+     */
+    public static Lock readLock( File file ) {
+        return lockFor(file).readLock();
+    }
+
+    /**
+     * return the lock held while replacing or removing the file.
+     * @param file the cache file
+     * @return the write lock
+     */
+    public static Lock writeLock( File file ) {
+        return lockFor(file).writeLock();
+    }
+
+    /**
+     * record that a stream will read the file, so it must not be removed.  This should
+     * be called while holding the read lock.
+     * @param file the cache file
+     */
+    public static void pin( File file ) {
+        pins.merge( file.getPath(), 1, Integer::sum );
+    }
+
+    /**
+     * record that a stream is done with the file.
+     * @param file the cache file
+     */
+    public static void unpin( File file ) {
+        pins.computeIfPresent( file.getPath(), (k,n) -> n==1 ? null : n-1 );
+    }
+
+    /**
+     * return true if a stream will read the file.  This should be called while
+     * holding the write lock before the file is removed.
+     * @param file the cache file
+     * @return true if the file is pinned.
+     */
+    public static boolean isPinned( File file ) {
+        return pins.containsKey( file.getPath() );
+    }
+}
@@ -0,0 +1,220 @@
+
+package hapi.cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.text.ParseException;
+import org.hapiserver.TimeUtil;
+
+/**
+ * The length of time covered by each granule (cache file) of a dataset.  The size
+ * is chosen for each dataset from its cadence and record length, so that
+ * granules of fast datasets are not too large to download quickly, and
+ * granules of slow datasets are not so small that there are many files with
+ * a few records each.
+ * <p>
+ * The name of a granule shows its size, like 20240101T05 for an hour, 20240101 for
+ * a day, 202401 for a month, and 2024 for a year, and granules of a dataset
+ * are kept in a directory for the year and month, or for the year when they
+ * are a month or longer, or in the dataset directory for years.
+ * <p>
+ * Once chosen, the size is recorded in the dataset directory, so that the granules
+ * are found again even when the info of the dataset changes or cannot be read.
+ * @author jbf
+ */
+public enum GranuleSize {
+
+    HOUR( TimeUtil.COMPONENT_HOUR, 3600 ),
+    DAY( TimeUtil.COMPONENT_DAY, 86400 ),
+    MONTH( TimeUtil.COMPONENT_MONTH, 86400*30 ),
+    YEAR( TimeUtil.COMPONENT_YEAR, 86400*365 );
+
+    /**
+     * the largest granule, estimated from the cadence and the length of a binary record, which is
+     * used when choosing the size.
+     */
+    private static final long MAX_GRANULE_BYTES= 16000000;
+
+    /**
+     * the file in the dataset directory which records the size of its granules.
+     */
+    public static final String FILE_NAME= "granuleSize.txt";
+
+    /**
+     * the component of the time array which is incremented for the next granule.
+     */
+    private final int component;
+
+    /**
+     * the approximate number of seconds in the granule.
+     */
+    private final long seconds;
+
+    GranuleSize( int component, long seconds ) {
+        this.component= component;
+        this.seconds= seconds;
+    }
+
+    /**
+     * choose the granule size for the dataset, which is the largest size where a granule
+     * is not expected to be more than MAX_GRANULE_BYTES.  Datasets without a cadence
+     * use days.
+     * @param cadence the ISO8601 duration of the cadence, like "PT1S", or null.
+     * @param bytesPerRecord the length of a binary record.
+     * @return the size
+     */
+    public static GranuleSize forCadence( String cadence, int bytesPerRecord ) {
+        if ( cadence==null ) {
+            return DAY;
+        }
+        double cadenceSeconds;
+        try {
+            int[] d= TimeUtil.parseISO8601Duration(cadence);
+            cadenceSeconds= d[0]*86400.*365 + d[1]*86400.*30 + d[2]*86400. + d[3]*3600. + d[4]*60. + d[5] + d[6]/1e9;
+        } catch ( ParseException ex ) {
+            return DAY;
+        }
+        if ( cadenceSeconds<=0 ) {
+            return DAY;
+        }
+        GranuleSize result= HOUR;
+        for ( GranuleSize s: values() ) {
+            if ( s.seconds / cadenceSeconds * bytesPerRecord <= MAX_GRANULE_BYTES ) {
+                result= s;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * return the size recorded for the dataset, see {@link #write(File)}.
+     * @param datasetDir the directory of the dataset in the cache.
+     * @return null or the size
+     */
+    public static GranuleSize read( File datasetDir ) {
+        File f= new File( datasetDir, FILE_NAME );
+        if ( !f.exists() ) {
+            return null;
+        }
+        try {
+            return valueOf( new String( Files.readAllBytes( f.toPath() ), StandardCharsets.US_ASCII ).trim() );
+        } catch ( IOException | IllegalArgumentException ex ) {
+            return null;
+        }
+    }
+
+    /**
+     * record this as the size of the granules of the dataset.
+     * @param datasetDir the directory of the dataset in the cache.
+     * @throws IOException 
+     */
+    public void write( File datasetDir ) throws IOException {
+        if ( !datasetDir.exists() && !datasetDir.mkdirs() && !datasetDir.exists() ) {
+            throw new IOException( "unable to make directory: "+datasetDir );
+        }
+        try ( CacheFileWriter w= new CacheFileWriter( new File( datasetDir, FILE_NAME ), false ) ) {
+            w.write( ( name() + "\n" ).getBytes(StandardCharsets.US_ASCII) );
+            w.commit();
+        }
+    }
+
+    /**
+     * return true if the dataset directory has day granules, like 2024/01/20240101,A.csv, which
+     * were written when days were always used.  The index is used rather than listing the
+     * directories.
+     * @param index the index of the cache.
+     * @param datasetDir the directory of the dataset in the cache.
+     * @return true if there are day granules.
+     */
+    public static boolean hasDayGranules( CacheIndex index, File datasetDir ) {
+        for ( File f: index.listUnder( datasetDir ) ) {
+            File month= f.getParentFile();
+            File year= month.getParentFile();
+            if ( year!=null && f.getName().matches("\\d{8}[,.].*")
+                    && month.getName().matches("\\d{2}")
+                    && year.getName().matches("\\d{4}")
+                    && datasetDir.equals( year.getParentFile() ) ) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * return the start of the granule containing the time.
+     * @param time the time, as a seven-component time array.
+     * @return the start of the granule
+     */
+    public int[] floor( int[] time ) {
+        int[] result= new int[7];
+        System.arraycopy( time, 0, result, 0, component+1 );
+        if ( component<TimeUtil.COMPONENT_MONTH ) result[TimeUtil.COMPONENT_MONTH]= 1;
+        if ( component<TimeUtil.COMPONENT_DAY ) result[TimeUtil.COMPONENT_DAY]= 1;
+        return result;
+    }
+
+    /**
+     * return the start of the next granule.
+     * @param start the start of the granule
+     * @return the start of the next granule
+     */
+    public int[] next( int[] start ) {
+        int[] result= start.clone();
+        result[component]++;
+        TimeUtil.normalizeTime(result);
+        return result;
+    }
+
+    /**
+     * return true if the time is the start of a granule.
+     * @param time the time, as a seven-component time array.
+     * @return true if the time is the start of a granule.
+     */
+    public boolean isStart( int[] time ) {
+        return TimeUtil.eq( time, floor(time) );
+    }
+
+    /**
+     * return the name of the granule, without parameters and extension.
+     * @param start the start of the granule
+     * @return the name, like 20240101
+     */
+    public String name( int[] start ) {
+        return switch ( this ) {
+            case HOUR -> String.format( "%04d%02d%02dT%02d", start[0], start[1], start[2], start[3] );
+            case DAY -> String.format( "%04d%02d%02d", start[0], start[1], start[2] );
+            case MONTH -> String.format( "%04d%02d", start[0], start[1] );
+            case YEAR -> String.format( "%04d", start[0] );
+        };
+    }
+
+    /**
+     * return the directory for the granule, relative to the dataset directory.
+     * @param start the start of the granule
+     * @return the directory, like 2024/01/, which is empty or ends with the separator.
+     */
+    public String directory( int[] start ) {
+        String sep= File.separator;
+        return switch ( this ) {
+            case HOUR, DAY -> String.format( "%04d"+sep+"%02d"+sep, start[0], start[1] );
+            case MONTH -> String.format( "%04d"+sep, start[0] );
+            case YEAR -> "";
+        };
+    }
+
+    /**
+     * return the time formatted for a request to the remote server.  Days are
+     * formatted as before, like 2024-01-01Z.
+     * @param time the time
+     * @return the formatted time.
+     */
+    public String format( int[] time ) {
+        if ( this==HOUR ) {
+            return String.format( "%04d-%02d-%02dT%02d:00Z", time[0], time[1], time[2], time[3] );
+        } else {
+            return String.format( "%04d-%02d-%02dZ", time[0], time[1], time[2] );
+        }
+    }
+}
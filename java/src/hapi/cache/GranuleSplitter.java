@@ -0,0 +1,340 @@
+
+package hapi.cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.hapiserver.TimeUtil;
+
+/**
+ * loads a run of consecutive granules which are missing from the cache with one
+ * request to the remote server, cutting the response into the granule files as it
+ * is read.  CSV responses are cut at the first line with a time at or after
+ * the start of the next granule, and binary responses at the first record.
+ * <p>
+ * Each granule is registered as an {@link InFlightDownload}, so the client can read
+ * the first granule while the rest of the response is still arriving, and other requests
+ * for the same granules follow this download.  When the download fails, a granule
+ * which has not been written is loaded with its own request, and a client which was
+ * reading the granule reads the rest of it from that request.  When the client closes the
+ * request, the download is cancelled, see {@link #cancel()}.
+ * @author jbf
+ */
+public class GranuleSplitter {
+
+    private static final Logger logger= Logger.getLogger(GranuleSplitter.class.getName());
+
+    private static final int BUFFER_SIZE= 65536;
+
+    private final URL url;
+    private final InputStreamProvider upstream;
+    private final File[] files;
+    private final String[] starts;
+    private final int recLength;
+    private final CacheIndex index;
+    private final boolean compress;
+
+    private Consumer<File> commitListener= null;
+
+    private InFlightDownload[] downloads= null;
+
+    private boolean started= false;
+
+    private volatile boolean cancelled= false;
+
+    private Future<?> task= null;
+
+    /**
+     * completed when the downloads of the granules have been registered, when the download starts.
+     */
+    private final CompletableFuture<Void> registered= new CompletableFuture<>();
+
+    /**
+     * @param url the request for all the granules, used to identify the host.
+     * @param upstream the response to the request for all the granules.
+     * @param files the cache files for the granules.
+     * @param starts the start time of each granule, as an isotime.
+     * @param recLength the length of each binary record, or 0 when the response is CSV.
+     * @param index the index to update as granules are completed.
+     * @param compress if true, the cache files are stored gzip compressed.
+     */
+    public GranuleSplitter( URL url, InputStreamProvider upstream, File[] files, String[] starts,
+        int recLength, CacheIndex index, boolean compress ) {
+        this.url= url;
+        this.upstream= upstream;
+        this.files= files;
+        this.starts= starts;
+        this.recLength= recLength;
+        this.index= index;
+        this.compress= compress;
+    }
+
+    /**
+     * call the listener with each cache file once it is written completely and found by the index.
+     * @param commitListener null or the listener
+     */
+    public void setCommitListener( Consumer<File> commitListener ) {
+        this.commitListener= commitListener;
+    }
+
+    /**
+     * start the download in the background.  The download of each granule is registered when
+     * the download starts, and the granules wait for this before they are opened, so the fetcher
+     * must not be one whose workers may be waiting for these granules.
+     * @param fetcher the fetcher, which limits the downloads from each host.
+     */
+    public synchronized void start( GranuleFetcher fetcher ) {
+        if ( started ) {
+            return;
+        }
+        started= true;
+        task= fetcher.submit( url, () -> {
+            register();
+            split();
+            return null;
+        } );
+    }
+
+    /**
+     * stop the download, because the client will not read any more granules.  A download which
+     * has not started is not made.  Otherwise the granules which other requests are following are
+     * completed for them, and the download stops after the last of these.  Followers which are
+     * closed, like the client's own, no longer count.
+     */
+    public synchronized void cancel() {
+        cancelled= true;
+        if ( task!=null && task.cancel(false) ) {
+            registered.completeExceptionally( new IOException( "download was cancelled: "+url ) );
+        }
+    }
+
+    /**
+     * return the index of the last granule from first which another request is following, or
+     * first-1 when there are none.  The granules after this are abandoned, so requests which
+     * would follow them make their own download.
+     */
+    private int lastFollowed( int first ) {
+        for ( int i=files.length-1; i>=first; i-- ) {
+            if ( downloads[i]!=null && !downloads[i].abandonUnlessFollowed() ) {
+                return i;
+            }
+        }
+        return first-1;
+    }
+
+    /**
+     * register the download of each granule, which is null when another request is loading it.
+     */
+    private void register() {
+        downloads= new InFlightDownload[files.length];
+        try {
+            for ( int i=0; i<files.length; i++ ) {
+                downloads[i]= InFlightDownload.register( files[i] );
+            }
+        } finally {
+            registered.complete(null);
+        }
+    }
+
+    /**
+     * return the provider for one granule, which reads the granule as it is written.
+     * @param i the index of the granule
+     * @param fallback the provider which loads the granule with its own request, when this download fails.
+     * @return the provider
+     */
+    public InputStreamProvider granule( int i, InputStreamProvider fallback ) {
+        return () -> {
+            BackgroundStreams.get( registered );
+            InputStream ins;
+            try {
+                ins= InFlightDownload.follow( files[i] );
+            } catch ( IOException ex ) {
+                logger.log( Level.FINE, "unable to split the download, loading "+files[i]+" alone", ex );
+                return fallback.openInputStream();
+            }
+            if ( ins!=null ) {
+                return new ResumingInputStream( ins, fallback, files[i] );
+            } else if ( index.get( files[i] )!=null ) {
+                return new FileInputStreamProvider( files[i] ).openInputStream();
+            } else {
+                return fallback.openInputStream();
+            }
+        };
+    }
+
+    /**
+     * the granule which is being written.
+     */
+    private class Granule {
+        final int i;
+        final CacheFileWriter out;
+        final CsvTimeIndex.Builder timeIndex;
+
+        Granule( int i ) throws IOException {
+            this.i= i;
+            if ( downloads[i]==null ) {
+                out= null;
+                timeIndex= null;
+            } else {
+                out= new CacheFileWriter( files[i], false );
+                out.setCompress(compress);
+                out.setIndex(index);
+                timeIndex= ( recLength==0 && !compress ) ? new CsvTimeIndex.Builder() : null;
+                downloads[i].started( out.getPartFile(), 0 );
+            }
+        }
+
+        void write( byte[] b, int off, int len ) throws IOException {
+            if ( out!=null && len>0 ) {
+                out.write( b, off, len );
+                if ( timeIndex!=null ) timeIndex.update( b, off, len );
+                downloads[i].advance( len );
+            }
+        }
+
+        void commit() throws IOException {
+            if ( out!=null ) {
+                out.commit();
+                if ( timeIndex!=null ) {
+                    try {
+                        timeIndex.write( files[i] );
+                    } catch ( IOException ex ) {
+                        logger.log( Level.WARNING, "unable to write time index for "+files[i], ex );
+                    }
+                }
+                index.update( files[i] );
+                downloads[i].finish();
+                if ( commitListener!=null ) commitListener.accept( files[i] );
+            }
+        }
+    }
+
+    /**
+     * read the response, writing each record to the granule containing it.
+     */
+    private void split() {
+        Granule current= null;
+        int next= 1; // the index of the next granule.
+        byte[][] boundaries= null;
+        try ( InputStream ins= upstream.openInputStream() ) {
+            current= new Granule(0);
+            byte[] buf= new byte[ recLength>0 ? Math.max( 1, BUFFER_SIZE/recLength ) * recLength : BUFFER_SIZE ];
+            int limit= 0;
+            boolean eof= false;
+            while ( !eof ) {
+                if ( cancelled && lastFollowed( current.i )<current.i ) {
+                    throw new IOException( "download was cancelled: "+url );
+                }
+                int bytesRead= ins.read( buf, limit, buf.length-limit );
+                if ( bytesRead==-1 ) {
+                    eof= true;
+                } else {
+                    limit+= bytesRead;
+                }
+                int pos= 0;
+                int emitStart= 0;
+                while ( pos<limit ) {
+                    int end; // the end of the record, exclusive.
+                    if ( recLength>0 ) {
+                        end= pos+recLength<=limit ? pos+recLength : -1;
+                    } else {
+                        end= -1;
+                        for ( int j=pos; j<limit; j++ ) {
+                            if ( buf[j]=='\n' ) {
+                                end= j+1;
+                                break;
+                            }
+                        }
+                        if ( end==-1 && eof ) end= limit; // last line has no newline.
+                    }
+                    if ( end==-1 ) break;
+                    boolean isRecord= recLength>0 || buf[pos]=='1' || buf[pos]=='2';
+                    if ( isRecord && next<files.length ) {
+                        if ( boundaries==null ) {
+                            boundaries= reformatStarts( buf, pos, end );
+                        }
+                        if ( compare( buf, pos, end, boundaries[next] )>=0 ) {
+                            current.write( buf, emitStart, pos-emitStart );
+                            emitStart= pos;
+                            while ( next<files.length && compare( buf, pos, end, boundaries[next] )>=0 ) {
+                                current.commit();
+                                current= new Granule(next);
+                                next++;
+                            }
+                        }
+                    }
+                    pos= end;
+                }
+                current.write( buf, emitStart, pos-emitStart );
+                System.arraycopy( buf, pos, buf, 0, limit-pos );
+                limit-= pos;
+                if ( limit==buf.length ) {
+                    buf= Arrays.copyOf( buf, buf.length*2 ); // a very long line
+                }
+            }
+            current.commit();
+            while ( next<files.length ) { // granules with no records.
+                current= new Granule(next);
+                next++;
+                current.commit();
+            }
+        } catch ( IOException | RuntimeException ex ) {
+            IOException failure= ex instanceof IOException ? (IOException)ex : new IOException(ex);
+            int first= current==null ? 0 : current.i;
+            if ( current!=null && current.out!=null ) {
+                try {
+                    current.out.abort();
+                } catch ( IOException ex1 ) {
+                    logger.log( Level.FINE, null, ex1 );
+                }
+            }
+            for ( int i=first; i<files.length; i++ ) {
+                if ( downloads[i]!=null ) {
+                    index.remove( files[i] );
+                    downloads[i].fail( failure );
+                }
+            }
+            logger.log( Level.FINE, "split download failed: "+url, ex );
+        }
+    }
+
+    /**
+     * return the start times of the granules, formatted like the time of the first record.
+     */
+    private byte[][] reformatStarts( byte[] buf, int pos, int end ) {
+        int i= pos;
+        if ( recLength>0 ) {
+            while ( i<end && buf[i]!=0 ) i++;
+        } else {
+            while ( i<end && buf[i]!=',' && buf[i]!='\n' && buf[i]!='\r' ) i++;
+        }
+        String atime= new String( buf, pos, i-pos, StandardCharsets.US_ASCII ).trim();
+        byte[][] result= new byte[starts.length][];
+        for ( int j=0; j<starts.length; j++ ) {
+            result[j]= TimeUtil.reformatIsoTime( atime, starts[j] ).getBytes( StandardCharsets.US_ASCII );
+        }
+        return result;
+    }
+
+    /**
+     * compare the beginning of the record to the time, like String.compareTo.
+     */
+    private static int compare( byte[] buf, int pos, int end, byte[] time ) {
+        int n= Math.min( end-pos, time.length );
+        for ( int i=0; i<n; i++ ) {
+            int diff= ( buf[pos+i] & 0xFF ) - ( time[i] & 0xFF );
+            if ( diff!=0 ) {
+                return diff;
+            }
+        }
+        return n<time.length ? -1 : 0;
+    }
+}
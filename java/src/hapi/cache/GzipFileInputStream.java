@@ -0,0 +1,30 @@
+
+package hapi.cache;
+
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+
+/**
+ * FileInputStream for a cache file which is stored gzip compressed, returned when the
+ * client accepts gzip and the file can be sent as it is stored.  The bytes are the
+ * compressed bytes, so the client must be told the content encoding is gzip.
+ * @author jbf
+ * @see HapiCache2024#getInputStream(java.net.URL, boolean) 
+ */
+public class GzipFileInputStream extends FileInputStream {
+
+    public GzipFileInputStream( File file ) throws FileNotFoundException {
+        super(file);
+    }
+
+    /**
+     * @param fd the descriptor of the file, which is already open.  It is closed when this is closed.
+     * @see FileInputStreamProvider#openInputStream(boolean) 
+     */
+    public GzipFileInputStream( FileDescriptor fd ) {
+        super(fd);
+    }
+    
+}
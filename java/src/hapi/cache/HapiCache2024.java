@@ -3,6 +3,7 @@ package hapi.cache;
 
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.MalformedURLException;
@@ -10,11 +11,24 @@ import java.net.URL;
 import java.text.ParseException;
 import java.time.Duration;
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.function.Consumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import org.codehaus.jettison.json.JSONArray;
 import org.codehaus.jettison.json.JSONException;
 import org.codehaus.jettison.json.JSONObject;
 import org.hapiserver.TimeUtil;
@@ -25,10 +39,12 @@ import org.hapiserver.TimeUtil;
  * <ul>
  * <li> multi-parameter data gets are stored together, and stitching is no longer done
  * <li> check for direct hits: same start, stop, and parameters.
+ * <li> trim parameters when a day is cached with a superset of the parameters (parameter superset)
+ * <li> a granule cached in CSV can be sent as binary, and the reverse (transcoding)
+ * <li> granules can be stored as compressed columns, see {@link ColumnarGranule}
  * </ul>
  * This is quite simple right now, lacking original features like:
  * <ul>
- * <li> trim parameters when a superset of the data is found (parameter superset)
  * <li> trim data in time when cache granule contains more than the data requested.
  * <li> break up long requests into multiple cache files (granularizing)
  * <li> detect when one cache entry can be used to implement another (redundancy)
@@ -36,6 +52,16 @@ import org.hapiserver.TimeUtil;
  * And new features like:
  * <ul>
  * <li>freshness controls 
+ * <li>granules of an hour, day, month or year, chosen from the cadence of each dataset, see {@link GranuleSize}
+ * <li>read-ahead, where the granules of a long request are downloaded in parallel.
+ * <li>an in-memory index of the cache, so that lookups do not check the filesystem.
+ * <li>the parsed info of each dataset is kept in memory, see {@link MetadataCache}, along with the layout
+ * of its binary records, see {@link RecordLayout}.
+ * <li>binary is requested from the remote server when it is supported, even for CSV requests, 
+ * since it is smaller and faster to parse.  The CSV sent is then formatted from the binary, so 
+ * numbers may be written differently than in the CSV of the remote server, see {@link BinaryToCsvDataInputStream}.
+ * <li>one instance can be shared by many threads, like the requests of the proxy server.  Granules
+ * are replaced and removed holding their write lock, see {@link GranuleLocks}.
  * </ul>
  * Here is a list of issues to handle/check:
  * <ul>
@@ -45,9 +71,48 @@ import org.hapiserver.TimeUtil;
  * @author jbf
  */
 public class HapiCache2024 {
+    
+    private static final Logger logger= Logger.getLogger(HapiCache2024.class.getName());
+    
     // Attributes
     private final CacheDirective cacheDirective;
-    private final long lastModifiedRequirement;
+    private final GranuleFetcher granuleFetcher;
+    
+    /**
+     * runs the downloads of runs of missing granules, see {@link GranuleSplitter}.  These have their
+     * own workers, so that they do not wait behind the downloads they are followed by.
+     */
+    private final GranuleFetcher splitFetcher;
+    private final UpstreamClient upstream;
+    private final File cacheRoot;
+    private final CacheIndex cacheIndex;
+    
+    /**
+     * the number of metadata entries kept in memory.
+     */
+    private static final int METADATA_ENTRIES= 1000;
+    
+    /**
+     * the time metadata is kept in memory, unless the cache files become stale sooner.
+     */
+    private static final Duration METADATA_TTL= Duration.ofMinutes(5);
+    
+    /**
+     * the parsed info of each dataset, and whether each remote server supports binary.
+     */
+    private final MetadataCache metadata;
+    
+    /**
+     * converts granules to columnar granules in the background, one at a time.  The thread
+     * is not a daemon, so that a conversion is completed before the program exits.
+     */
+    private final ExecutorService compactor= new ThreadPoolExecutor( 0, 1, 1, TimeUnit.SECONDS, 
+        new LinkedBlockingQueue<>(), (r) -> new Thread( r, "hapiCacheCompactor" ) );
+    
+    /**
+     * the granules which are being compacted.
+     */
+    private final Set<String> compacting= ConcurrentHashMap.newKeySet();
 
     /** 
      * Standard Constructor
@@ -55,19 +120,97 @@ public class HapiCache2024 {
      */
     public HapiCache2024(CacheDirective aCacheDirective) {
         cacheDirective = aCacheDirective;
+        granuleFetcher= new GranuleFetcher( cacheDirective.maxConnectionsPerHost() );
+        splitFetcher= new GranuleFetcher( cacheDirective.maxConnectionsPerHost() );
+        upstream= new UpstreamClient( cacheDirective.maxConnectionsPerHost() );
+        File base = cacheDirective.rootCacheDir();
+        if ( base.toString().equals("") ) {
+            base = new File( new File( System.getProperty("user.home") ), "hapi-cache"  );
+        }
+        cacheRoot= base;
+        cacheIndex= CacheIndex.load(cacheRoot);
+        Duration staleAfter= cacheDirective.getStaleAfterAsDuration();
+        metadata= new MetadataCache( METADATA_ENTRIES, 
+            staleAfter!=null && staleAfter.compareTo(METADATA_TTL)<0 ? staleAfter : METADATA_TTL );
+    }
+
+    /**
+     * return the time that cache files must be modified after to be used, which is
+     * computed for each request, so that a long-running cache (the proxy server) 
+     * notices files becoming stale.
+     * @return milliseconds since 1970, or Long.MIN_VALUE if files are never stale.
+     */
+    private long lastModifiedRequirement() {
         Duration d= cacheDirective.getStaleAfterAsDuration();
         if ( d!=null ) {
-            lastModifiedRequirement =  Instant.now().toEpochMilli() 
-                - d.getSeconds()*1000 - d.getNano()/1000000;
+            return Instant.now().toEpochMilli() - d.toMillis();
         } else {
-            lastModifiedRequirement = Long.MIN_VALUE;
+            return Long.MIN_VALUE;
+        }
+    }
+
+    /**
+     * return true if the granule is fresh, so it can be read.  When the cache stores
+     * columnar granules, the granule is also pinned and added to toCompact, so that it is not compacted
+     * by another request before it is read.  It must be unpinned when the stream is closed,
+     * see {@link #compactWhenClosed}.
+     * @param cacheFile the CSV or binary granule.
+     * @param toCompact the granules which will be read by the request.
+     * @return true if the granule is fresh.
+     */
+    private boolean readFresh( File cacheFile, List<File> toCompact ) {
+        Lock lock= GranuleLocks.readLock( cacheFile );
+        lock.lock();
+        try {
+            if ( !cacheIndex.isFresh( cacheFile, lastModifiedRequirement() ) ) {
+                return false;
+            }
+            if ( cacheDirective.storageFormat()==StorageFormat.COLUMNAR ) {
+                GranuleLocks.pin( cacheFile );
+                toCompact.add( cacheFile );
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * open a granule found by {@link #readFresh}, holding the read lock so that it is not replaced
+     * or removed while it is opened.  It is checked for gzip compression on the same descriptor,
+     * so the stream is labelled correctly even when the granule is replaced just after.
+     * @param cacheFile the CSV or binary granule.
+     * @param acceptGzip true if the compressed bytes can be returned, as a {@link GzipFileInputStream}.
+     * @return the stream
+     * @throws IOException 
+     */
+    private static InputStream openFresh( File cacheFile, boolean acceptGzip ) throws IOException {
+        Lock lock= GranuleLocks.readLock( cacheFile );
+        lock.lock();
+        try {
+            return new FileInputStreamProvider( cacheFile ).openInputStream( acceptGzip );
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * pin a granule which is not in the cache, which the request will load and then read, so that
+     * it is not compacted before it is read, see {@link #readFresh}.
+     * @param cacheFile the CSV or binary granule.
+     * @param toCompact the granules which will be read by the request.
+     */
+    private void pinMissing( File cacheFile, List<File> toCompact ) {
+        if ( cacheDirective.storageFormat()==StorageFormat.COLUMNAR ) {
+            GranuleLocks.pin( cacheFile );
+            toCompact.add( cacheFile );
         }
     }
 
     private HapiRequest parseHapiRequest( URL tmpUrl ) throws MalformedURLException {
-        URL url= new URL( tmpUrl.getProtocol(), tmpUrl.getHost(), tmpUrl.getFile() );
+        URL url= new URL( tmpUrl.getProtocol(), tmpUrl.getHost(), tmpUrl.getPort(), tmpUrl.getFile() );
         int ihapi= tmpUrl.getFile().lastIndexOf( "hapi" );
-        URL host= new URL( tmpUrl.getProtocol(), tmpUrl.getHost(), tmpUrl.getFile().substring(0,ihapi+4) );
+        URL host= new URL( tmpUrl.getProtocol(), tmpUrl.getHost(), tmpUrl.getPort(), tmpUrl.getFile().substring(0,ihapi+4) );
         String start=null,stop=null,dataset=null,parameters=null,format="csv",include=null;
         String query= tmpUrl.getQuery();
         if ( query!=null ) {
@@ -136,8 +279,9 @@ public class HapiCache2024 {
      * @param exactParams find the file using the exact parameters, not a superset.
      * @return CacheHit structure showing the cache files to use, which may not necessarily be downloaded yet.
      * @throws ParseException 
+     * @throws IOException when the size of the granules cannot be found, see {@link #granuleSizeFor}.
      */
-    private CacheHit pathForUrlData( HapiRequest request, boolean exactTime, boolean exactParams ) throws ParseException {
+    private CacheHit pathForUrlData( HapiRequest request, boolean exactTime, boolean exactParams ) throws ParseException, IOException {
         String sep= File.separator;
         String host= request.url().getHost();
         if ( request.url().getPort()!=-1 ) {
@@ -152,7 +296,6 @@ public class HapiCache2024 {
             istart[0], istart[1], istart[2], istart[3], istart[4], istart[5] );
         String stop= String.format("%04d%02d%02dT%02d%02d%02dZ", 
             istop[0], istop[1], istop[2], istop[3], istop[4], istop[5] );
-        int[] diff= TimeUtil.subtract(istop, istart);
 
         String format= request.format()==null ? "csv" : request.format();
         String params= request.parameters()==null ? "" : request.parameters();
@@ -160,16 +303,19 @@ public class HapiCache2024 {
         params= fileSystemSafeDataSetName(params);
         if ( params.length()>0 ) params= "," + params;
 
+        String datasetPath= host + sep + path + sep
+                     + fileSystemSafeDataSetName(request.dataset()) + sep;
+
         String year_month= String.format( "%04d"+sep+"%02d", istart[0], istart[1] );
 
-        String basePath= host + sep + path + sep
-                     + fileSystemSafeDataSetName(request.dataset()) + 
-                     sep + year_month + sep;
+        String basePath= datasetPath + year_month + sep;
 
-        if ( diff[0]==0 && diff[1]==0 && diff[2]==1 && start.endsWith("000000Z") && stop.endsWith("000000Z") ) {
-            // it's a one-day file
+        GranuleSize granuleSize= granuleSizeFor( request, new File( cacheRoot + File.separator + datasetPath ) );
+        
+        if ( granuleSize.isStart(istart) && TimeUtil.eq( granuleSize.next(istart), istop ) ) {
+            // it's one granule
             CacheHit result= new CacheHit();
-            result.files= new String[] { basePath + start.substring(0,8) + params + "." + format };
+            result.files= new String[] { datasetPath + granuleSize.directory(istart) + granuleSize.name(istart) + params + "." + format };
             result.urls= new URL[] { request.url() };
             result.subsetParameters= false;
             result.subsetTime=false;
@@ -189,38 +335,37 @@ public class HapiCache2024 {
                 result.subsetTime= false;
                 return result;
             } else {
-                String start1= String.format("%04d-%02d-%02dT%02d:%02d:%02dZ", 
-                    istart[0], istart[1], istart[2], 0, 0, 0 );
-                istop= TimeUtil.parseISO8601Time( TimeUtil.ceil(request.stop()) );
-                String stop1= 
-                    String.format("%04d-%02d-%02dT%02d:%02d:%02dZ", 
-                    istop[0], istop[1], istop[2], 0, 0, 0 );
-                String[] days= TimeUtil.countOffDays(start1, stop1);
-                URL[] urls= new URL[days.length];
-                for ( int i=0; i<days.length; i++ ) {
-                    String start2= days[i];
-                    String stop2= TimeUtil.nextDay(start2);
-                    String day= days[i].substring(0,4) + days[i].substring(5,7) + days[i].substring(8,10);
-                    days[i]= basePath + day + params + "." + format;  
+                List<String> files= new ArrayList<>();
+                List<String> starts= new ArrayList<>();
+                List<URL> urls= new ArrayList<>();
+                int[] start2= granuleSize.floor(istart);
+                while ( TimeUtil.gt( istop, start2 ) ) {
+                    int[] stop2= granuleSize.next(start2);
+                    files.add( datasetPath + granuleSize.directory(start2) + granuleSize.name(start2) + params + "." + format );  
+                    starts.add( String.format( "%04d-%02d-%02dT%02d:%02d:%02dZ", 
+                        start2[0], start2[1], start2[2], start2[3], start2[4], start2[5] ) );
                     URL url= request.url();
                     Map<String,String> pp= paramSplit(url.getQuery());
+                    pp.remove("include"); // the header is added to the response, not the granule.
                     if ( pp.containsKey("start") ) {
-                        pp.put( "start", start2 );
-                        pp.put( "stop", stop2);
+                        pp.put( "start", granuleSize.format(start2) );
+                        pp.put( "stop", granuleSize.format(stop2) );
                     } else {
-                        pp.put( "time.min", start2 );
-                        pp.put( "time.max", stop2);
+                        pp.put( "time.min", granuleSize.format(start2) );
+                        pp.put( "time.max", granuleSize.format(stop2) );
                     }
                     
                     try {
-                        urls[i]= new URL( request.host() + "/data" + "?" + paramJoin(pp) );
+                        urls.add( new URL( request.host() + "/data" + "?" + paramJoin(pp) ) );
                     } catch (MalformedURLException ex) {
-                        Logger.getLogger(HapiCache2024.class.getName()).log(Level.SEVERE, null, ex);
+                        throw new IllegalArgumentException(ex);
                     }
+                    start2= stop2;
                 }
                 CacheHit result= new CacheHit();
-                result.files= days;
-                result.urls= urls;
+                result.files= files.toArray( new String[files.size()] );
+                result.starts= starts.toArray( new String[starts.size()] );
+                result.urls= urls.toArray( new URL[urls.size()] );
                 result.subsetParameters= false;
                 result.subsetTime= true;
                 return result;
@@ -229,6 +374,42 @@ public class HapiCache2024 {
         
     }
 
+    /**
+     * return the size of the granules for the dataset.  This is the size recorded in the dataset
+     * directory, so that the granules are always found, or else it is chosen from the cadence
+     * and record length in its info and recorded.  A dataset which already has day granules, which
+     * were written when days were always used, keeps using days, as does a dataset whose record
+     * length is not known, for example with a type the binary layout does not support.  The size is kept in memory,
+     * see {@link MetadataCache}.
+     * @param request the data request
+     * @param datasetDir the directory of the dataset in the cache.
+     * @return the granule size
+     * @throws IOException when the size has not been recorded and the info cannot be read.
+     */
+    private GranuleSize granuleSizeFor( HapiRequest request, File datasetDir ) throws IOException {
+        String key= request.host() + "/" + request.dataset();
+        return metadata.get( "granuleSize " + key, () -> {
+            GranuleSize result= GranuleSize.read( datasetDir );
+            if ( result!=null ) {
+                return result;
+            }
+            if ( GranuleSize.hasDayGranules( cacheIndex, datasetDir ) ) {
+                result= GranuleSize.DAY;
+            } else {
+                JSONObject info= infoForDataset(request);
+                try {
+                    result= GranuleSize.forCadence( info.optString("cadence",null), HapiUtil.bytesPerRec(info) );
+                } catch ( IllegalArgumentException ex ) {
+                    logger.log( Level.FINE, "record length of {0} is not known, using days: {1}", new Object[] { key, ex.getMessage() } );
+                    result= GranuleSize.DAY;
+                }
+            }
+            logger.log( Level.FINE, "granule size for {0} is {1}", new Object[] { key, result } );
+            result.write( datasetDir );
+            return result;
+        } );
+    }
+
     /**
      * TODO: this is not implemented.
      * @param request
@@ -245,6 +426,7 @@ public class HapiCache2024 {
     
     private class CacheHit {
         String[] files=null;
+        String[] starts=null;
         URL[] urls= null;
         boolean subsetTime=false;
         boolean subsetParameters=false;
@@ -259,7 +441,7 @@ public class HapiCache2024 {
      * @param exactParams if true, then return the path with these exact parameters, otherwise return the file containing.
      * @return a CacheHit.
      */
-    private CacheHit pathForUrl( HapiRequest request, boolean exactTime, boolean exactParams ) throws ParseException {
+    private CacheHit pathForUrl( HapiRequest request, boolean exactTime, boolean exactParams ) throws ParseException, IOException {
         String sep= File.separator;
         String host= request.url().getHost();
         if ( request.url().getPort()!=-1 ) {
@@ -292,12 +474,14 @@ public class HapiCache2024 {
      * @throws IllegalArgumentException 
      */
     private boolean maybeMkdirsForFile( File cacheFile ) throws IllegalArgumentException {
-        if ( cacheFile.getParentFile().exists() ) {
+        File dir= cacheFile.getParentFile();
+        if ( cacheIndex.hasDirectory(dir) ) {
             return true;
         } else {
-            if ( !cacheFile.getParentFile().mkdirs() ) {
+            if ( !dir.mkdirs() && !dir.isDirectory() ) {
                 throw new IllegalArgumentException("unable to make cache directory: "+cacheFile.getParent());
             }
+            cacheIndex.addDirectory(dir);
             return true;
         }
     }
@@ -310,6 +494,20 @@ public class HapiCache2024 {
      * @throws IOException 
      */
     protected InputStream getInputStream( URL tmpUrl ) throws IOException {
+        return getInputStream( tmpUrl, false );
+    }
+    
+    /**
+     * return an InputStream for the URL, like getInputStream(tmpUrl).  When acceptGzip is true
+     * and the data response is a single granule stored gzip compressed, the compressed 
+     * bytes are returned as they are stored, as a {@link GzipFileInputStream}, so the 
+     * caller must send them with the content encoding gzip.
+     * @param tmpUrl the HAPI call
+     * @param acceptGzip true if the client accepts a gzip compressed response.
+     * @return
+     * @throws IOException 
+     */
+    public InputStream getInputStream( URL tmpUrl, boolean acceptGzip ) throws IOException {
         HapiRequest request= parseHapiRequest(tmpUrl);
         String path= request.url().getPath();
         
@@ -317,9 +515,9 @@ public class HapiCache2024 {
             String format= request.format();
             switch (format) {
                 case "csv":
-                    return getInputStreamCSV(tmpUrl);
+                    return getInputStreamCSV(tmpUrl,acceptGzip);
                 case "binary":
-                    return getInputStreamBinary(tmpUrl);
+                    return getInputStreamBinary(tmpUrl,acceptGzip);
                 default:
                     throw new IllegalArgumentException("unsupported format exception: "+request.format());
             }
@@ -328,16 +526,13 @@ public class HapiCache2024 {
             try {
                 CacheHit hit= pathForUrl( request, false, false );
                 assert ( hit.files.length!=1 );
-                File base = cacheDirective.rootCacheDir();
-                if ( base.toString().equals("") ) {
-                    base = new File( new File( System.getProperty("user.home") ), "hapi-cache"  );
-                }
+                File base = cacheRoot;
                 File cacheFile= new File( base +  File.separator + hit.files[0] );
-                if ( cacheFile.exists() && hit.files.length==1 && cacheFile.lastModified()>lastModifiedRequirement ) {
+                if ( hit.files.length==1 && cacheIndex.isFresh( cacheFile, lastModifiedRequirement() ) ) {
                     return new FileInputStream(cacheFile);
                 } else {
                     maybeMkdirsForFile(cacheFile);
-                    return new TeeInputStreamProvider( new URLInputStreamProvider(tmpUrl),cacheFile ).openInputStream();
+                    return new TeeInputStreamProvider( new URLInputStreamProvider(tmpUrl,upstream),cacheFile,cacheIndex ).openInputStream();
                 }
             } catch ( ParseException ex ) {
                 throw new IllegalArgumentException(ex);
@@ -346,16 +541,13 @@ public class HapiCache2024 {
             try {
                 CacheHit hit= pathForUrl( request, false, false );
                 assert ( hit.files.length!=1 );
-                File base = cacheDirective.rootCacheDir();
-                if ( base.toString().equals("") ) {
-                    base = new File( new File( System.getProperty("user.home") ), "hapi-cache"  );
-                }
+                File base = cacheRoot;
                 File cacheFile= new File( base +  File.separator + hit.files[0] );
-                if ( cacheFile.exists() && hit.files.length==1 && cacheFile.lastModified()>lastModifiedRequirement ) {
+                if ( hit.files.length==1 && cacheIndex.isFresh( cacheFile, lastModifiedRequirement() ) ) {
                     return new FileInputStream(cacheFile);
                 } else {
                     maybeMkdirsForFile(cacheFile);
-                    return new TeeInputStreamProvider( new URLInputStreamProvider(tmpUrl),cacheFile ).openInputStream();
+                    return new TeeInputStreamProvider( new URLInputStreamProvider(tmpUrl,upstream),cacheFile,cacheIndex ).openInputStream();
                 }
             } catch ( ParseException ex ) {
                 throw new IllegalArgumentException(ex);
@@ -367,21 +559,269 @@ public class HapiCache2024 {
     }
     
     /**
-     * return the info which should be at the top of the data request, and used to
-     * parse a stream.  This may have a subset of the parameters.
-     * @param request
-     * @return
+     * return the requests for each of the granules of the data request.  Reading a request
+     * with {@link #getInputStream(URL,boolean)} loads the granule into the cache, so these are
+     * used to fill the cache ahead of time.
+     * @param tmpUrl the data request
+     * @return the request for each granule, in order.
+     * @throws IOException when the info of the dataset cannot be read.
+     * @throws IllegalArgumentException when this is not a data request.
+     */
+    public List<URL> granuleRequests( URL tmpUrl ) throws IOException {
+        HapiRequest request= parseHapiRequest(tmpUrl);
+        if ( !request.url().getPath().endsWith("data") ) {
+            throw new IllegalArgumentException("not a data request: "+tmpUrl);
+        }
+        try {
+            CacheHit hit= pathForUrl( request, false, true );
+            if ( hit.subsetTime ) {
+                return Arrays.asList( hit.urls );
+            } else {
+                return Collections.singletonList( request.url() );
+            }
+        } catch ( ParseException ex ) {
+            throw new IllegalArgumentException(ex);
+        }
+    }
+
+    /**
+     * return true if the granule is fresh in the cache, in any format, or within a granule with
+     * more parameters or a columnar granule, so reading it does not need the remote server.
+     * @param granuleUrl the request for one granule, see {@link #granuleRequests(URL)}.
+     * @return true if the granule is fresh in the cache.
+     * @throws IOException when the info of the dataset cannot be read.
+     * @throws IllegalArgumentException when this is not the request for one granule.
+     */
+    public boolean isGranuleFresh( URL granuleUrl ) throws IOException {
+        HapiRequest request= parseHapiRequest(granuleUrl);
+        CacheHit hit;
+        try {
+            hit= pathForUrl( request, true, true );
+        } catch ( ParseException ex ) {
+            throw new IllegalArgumentException(ex);
+        }
+        if ( !request.url().getPath().endsWith("data") || hit.files.length!=1 ) {
+            throw new IllegalArgumentException("not the request for one granule: "+granuleUrl);
+        }
+        File cacheFile= new File( cacheRoot + File.separator + hit.files[0] );
+        if ( granuleName( cacheFile ).contains("_") ) {
+            throw new IllegalArgumentException("not the request for one granule: "+granuleUrl);
+        }
+        for ( String format: new String[] { "csv", "binary", ColumnarGranule.EXTENSION } ) {
+            if ( findSuperset( request, granuleInFormat( cacheFile, format ), format )!=null ) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * return the info response for the dataset, as it was read through the cache.  This is kept
+     * in memory, see {@link MetadataCache}.
+     * @param request the data request
+     * @return the info, as JSON.
      * @throws IOException 
      */
-    private String infoJsonForData( HapiRequest request ) throws IOException {
+    private String infoText( HapiRequest request ) throws IOException {
         URL infoUrl= infoForData(request);
-        InputStream ins= infoUrl.openStream();
-        byte[] infoBytes= ins.readAllBytes();
-        String infoString= new String( infoBytes, "UTF-8" );
-        if ( request.parameters()!=null ) {
-            return HapiUtil.subsetParameters( infoString, request.parameters().split(",",-2) );  //time always
+        return metadata.get( "infoText " + infoUrl, () -> {
+            try ( InputStream ins= getInputStream( infoUrl ) ) {
+                return new String( ins.readAllBytes(), "UTF-8" );
+            }
+        } );
+    }
+    
+    /**
+     * return the info for all the parameters of the dataset, read through the cache.  The
+     * parsed info is kept in memory and shared, so it must not be modified.
+     * @param request the data request
+     * @return the info
+     * @throws IOException 
+     */
+    private JSONObject infoForDataset( HapiRequest request ) throws IOException {
+        String infoString= infoText(request);
+        return metadata.get( "info " + infoForData(request), () -> {
+            try {
+                return new JSONObject( infoString );
+            } catch ( JSONException ex ) {
+                throw new IllegalArgumentException(ex);
+            }
+        } );
+    }
+    
+    /**
+     * return the header sent before the data, for include=header.  The header is rendered
+     * once for each dataset, list of parameters and version of the HAPI specification,
+     * and is kept in memory, see {@link MetadataCache}.
+     * @param request the data request
+     * @return the header
+     * @throws IOException 
+     */
+    private InputStreamProvider header( HapiRequest request ) throws IOException {
+        String infoString= infoText(request);
+        String version= infoForDataset(request).optString("HAPI","");
+        String[] parameters= request.parameters()==null ? null : request.parameters().split(",");
+        byte[] header= metadata.get( "header " + infoForData(request) + "&parameters=" + request.parameters() + "&HAPI=" + version,
+            () -> PrepHeaderInputStreamProvider.render( infoString, parameters, true ) );
+        return new PrepHeaderInputStreamProvider( header );
+    }
+    
+    /**
+     * a cache file with a superset of the parameters requested, and the info for its parameters.
+     */
+    private record Superset( File file, JSONObject info ) {
+    }
+    
+    /**
+     * return the name of the cache file before the parameters and the extension, like 20240101
+     * for 20240101,B_GSE.csv.  This contains an underscore when the file is for a time range
+     * which is not a granule, like 20240101T0130_20240101T0230.
+     * @param cacheFile the cache file
+     * @return the name, without parameters or extension.
+     */
+    private static String granuleName( File cacheFile ) {
+        String name= cacheFile.getName();
+        int idot= name.lastIndexOf('.');
+        String day= idot>-1 ? name.substring(0,idot) : name;
+        int icomma= day.indexOf(',');
+        return icomma>-1 ? day.substring(0,icomma) : day;
+    }
+    
+    /**
+     * look for the smallest fresh granule for the same day as the cache file, in the format,
+     * which contains all the parameters requested.
+     * @param request the request
+     * @param cacheFile the granule with exactly the parameters requested.
+     * @param format the format of the granule, like "csv" or "hcol".
+     * @return null or the granule
+     * @throws IOException 
+     */
+    private Superset findSuperset( HapiRequest request, File cacheFile, String format ) throws IOException {
+        String day= granuleName( cacheFile );
+        if ( day.contains("_") ) {
+            return null; // this is not a granule
+        }
+        List<File> candidates= new ArrayList<>();
+        for ( File f: cacheIndex.list( cacheFile.getParentFile(), day ) ) {
+            char c= f.getName().charAt(day.length());
+            CacheIndex.Entry e= cacheIndex.get(f);
+            if ( ( c==',' || c=='.' ) && e!=null && e.format().equals(format) && e.lastModified()>lastModifiedRequirement() ) {
+                candidates.add(f);
+            }
+        }
+        if ( candidates.isEmpty() ) {
+            return null;
+        }
+        
+        JSONObject info= infoForDataset(request);
+        Map<String,String> infoNames= infoNames(info);
+        List<String> needed= new ArrayList<>();
+        if ( request.parameters()==null ) {
+            needed.addAll( infoNames.values() );
+        } else {
+            for ( String n: request.parameters().split(",") ) {
+                if ( infoNames.containsValue(n) ) needed.add(n);
+            }
+        }
+        
+        File best= null;
+        JSONObject bestInfo= null;
+        long bestSize= Long.MAX_VALUE;
+        for ( File f: candidates ) {
+            CacheIndex.Entry e= cacheIndex.get(f);
+            if ( e==null || e.size()>=bestSize ) continue;
+            List<String> has= parametersIn( infoNames, e );
+            if ( has.containsAll(needed) ) {
+                best= f;
+                bestSize= e.size();
+                bestInfo= e.parameters()==null ? info : HapiUtil.selectParameters( info, has );
+            }
+        }
+        return best==null ? null : new Superset( best, bestInfo );
+    }
+    
+    /**
+     * return the names of the parameters after time, keyed by the filesystem-safe
+     * names used for granules.
+     * @param info the info for the dataset
+     * @return map from filesystem-safe name to name
+     */
+    private Map<String,String> infoNames( JSONObject info ) {
+        Map<String,String> infoNames= new LinkedHashMap<>(); // filesystem-safe name to name
+        try {
+            JSONArray parameters= info.getJSONArray("parameters");
+            for ( int i=1; i<parameters.length(); i++ ) {
+                String n= parameters.getJSONObject(i).getString("name");
+                infoNames.put( fileSystemSafeDataSetName(n), n );
+            }
+        } catch ( JSONException ex ) {
+            throw new IllegalArgumentException(ex);
+        }
+        return infoNames;
+    }
+    
+    /**
+     * return the names of the parameters after time in the granule.
+     * @param infoNames map from filesystem-safe name to name, see infoNames.
+     * @param e the index entry for the granule.
+     * @return the names
+     */
+    private static List<String> parametersIn( Map<String,String> infoNames, CacheIndex.Entry e ) {
+        List<String> has= new ArrayList<>();
+        if ( e.parameters()==null ) {
+            has.addAll( infoNames.values() );
         } else {
-            return infoString;
+            for ( String p: e.parameters() ) {
+                if ( infoNames.containsKey(p) ) has.add( infoNames.get(p) );
+            }
+        }
+        return has;
+    }
+    
+    /**
+     * look for a fresh granule for the same day and format as the cache file, which 
+     * contains all the parameters requested, and return a provider which trims it
+     * to the parameters requested.  This is the "parameter superset" cache hit.
+     * @param request the request
+     * @param cacheFile the granule with exactly the parameters requested, which is not in the cache.
+     * @param start the start time when the granule must also be trimmed in time, or null.
+     * @param stop the stop time, or null.
+     * @param toCompact the granules which will be read by the request, see {@link #readFresh}.
+     * @return null if there is no such granule, or the provider.
+     * @throws IOException 
+     */
+    private InputStreamProvider supersetGranule( HapiRequest request, File cacheFile, String start, String stop, 
+        List<File> toCompact ) throws IOException {
+        if ( request.parameters()==null ) {
+            return null;
+        }
+        String name= cacheFile.getName();
+        String format= name.substring( name.lastIndexOf('.')+1 );
+        Superset superset= findSuperset( request, cacheFile, format );
+        if ( superset==null || !readFresh( superset.file(), toCompact ) ) {
+            return null;
+        }
+        String[] names= request.parameters().split(",");
+        File best= superset.file();
+        JSONObject bestInfo= superset.info();
+        
+        InputStreamProvider source= new FileInputStreamProvider(best);
+        final JSONObject granuleInfo= bestInfo;
+        if ( format.equals("csv") ) {
+            if ( start!=null ) {
+                source= new TimeSubsetCsvDataInputStreamProvider( start, stop, source );
+            }
+            final InputStreamProvider fsource= source;
+            final int[] fields= HapiUtil.csvColumns( granuleInfo, names );
+            return () -> new ParameterSubsetCsvDataInputStream( fields, fsource.openInputStream() );
+        } else {
+            final RecordLayout layout= RecordLayout.of( granuleInfo );
+            if ( start!=null ) {
+                source= new TimeSubsetBinaryDataInputStreamProvider( layout, start, stop, source );
+            }
+            final InputStreamProvider fsource= source;
+            final int[] fields= layout.indices( names );
+            return () -> new ParameterSubsetBinaryDataInputStream( layout, fields, fsource.openInputStream() );
         }
     }
     
@@ -398,6 +838,360 @@ public class HapiCache2024 {
         }
     }
     
+    /**
+     * return the provider which reads the data granule from the remote server and 
+     * writes it to the cache file, compressed when the storage format is GZIP.  When
+     * the storage format is COLUMNAR, the granule is compacted once it is written.
+     * @param request the request, which identifies the dataset of the granule.
+     * @param url the URL for the granule
+     * @param cacheFile the cache file for the granule
+     * @return the provider
+     */
+    private InputStreamProvider dataTee( HapiRequest request, URL url, File cacheFile ) {
+        boolean compress= cacheDirective.storageFormat()==StorageFormat.GZIP;
+        TeeInputStreamProvider tee= new TeeInputStreamProvider( new URLInputStreamProvider(url,upstream), cacheFile, cacheIndex, compress );
+        tee.setCommitListener( compactWhenCommitted( request ) );
+        return tee;
+    }
+    
+    /**
+     * return the listener which compacts granules of the request once they are written, or null
+     * when the cache does not store columnar granules.  Granules pinned by the request are
+     * compacted instead when its stream is closed, see {@link #compactWhenClosed}.
+     * @param request the request, which identifies the dataset of the granules.
+     * @return null or the listener
+     */
+    private Consumer<File> compactWhenCommitted( HapiRequest request ) {
+        if ( cacheDirective.storageFormat()!=StorageFormat.COLUMNAR ) {
+            return null;
+        }
+        return (f) -> maybeCompact( request, f );
+    }
+    
+    /**
+     * return the provider for a granule which is not in the cache.  The granule is
+     * downloaded in the background by the read-ahead, and the client follows the download,
+     * reading the granule as it arrives.  So the remote server is read at its own pace and not
+     * at the pace of the client, and its connection is given back as soon as the granule is loaded.
+     * @param request the request
+     * @param readAhead the read-ahead for this request
+     * @param url the URL for the granule
+     * @param cacheFile the cache file for the granule
+     * @return the provider
+     */
+    private InputStreamProvider missingGranule( HapiRequest request, GranuleFetcher.ReadAhead readAhead, URL url, File cacheFile ) {
+        return readAhead.add( url, dataTee( request, url, cacheFile ), cacheFile );
+    }
+    
+    /**
+     * open the stream for a request which reads one provider.  It is opened now, so that errors 
+     * like 404 are reported before the response is started, and the read-ahead, when there is one,
+     * is closed when the stream is closed.
+     * @param ins the provider
+     * @param readAhead null or the read-ahead for this request
+     * @return the stream
+     * @throws IOException 
+     */
+    private static InputStream openSingle( InputStreamProvider ins, GranuleFetcher.ReadAhead readAhead ) throws IOException {
+        if ( readAhead==null ) {
+            return ins.openInputStream();
+        }
+        InputStream result;
+        try {
+            result= ins.openInputStream();
+        } catch ( IOException | RuntimeException ex ) {
+            readAhead.close();
+            throw ex;
+        }
+        ConcatenateInputStream c= new ConcatenateInputStream( () -> result );
+        c.closeWhenClosed( readAhead );
+        return c;
+    }
+    
+    /**
+     * arrange for the granules which are missing from the cache to be loaded.  Each run
+     * of consecutive missing granules is loaded with one request to the remote server, which
+     * is cut into the granules as it is read (see {@link GranuleSplitter}), and a missing
+     * granule by itself is loaded as usual.  The missing granules are pinned until the 
+     * stream of the request is closed, see {@link #pinMissing}.
+     * @param request the request
+     * @param readAhead the read-ahead for this request
+     * @param starts the start time of each granule of the request
+     * @param urls the URL for each missing granule, or null where the granule is not missing.
+     * @param files the cache file for each missing granule.
+     * @param recLength the length of a binary record, or 0 when the granules are CSV.
+     * @param toCompact the granules which will be read by the request.
+     * @return the provider for each missing granule, or null where the granule is not missing.
+     * @throws MalformedURLException 
+     */
+    private InputStreamProvider[] loadMissing( HapiRequest request, GranuleFetcher.ReadAhead readAhead, String[] starts, 
+        URL[] urls, File[] files, int recLength, List<File> toCompact ) throws MalformedURLException {
+        int n= urls.length;
+        InputStreamProvider[] result= new InputStreamProvider[n];
+        boolean compress= cacheDirective.storageFormat()==StorageFormat.GZIP;
+        int i= 0;
+        while ( i<n ) {
+            if ( urls[i]==null ) {
+                i++;
+                continue;
+            }
+            int j= i;
+            while ( j+1<n && urls[j+1]!=null ) j++;
+            for ( int k=i; k<=j; k++ ) {
+                pinMissing( files[k], toCompact );
+            }
+            if ( j==i ) {
+                result[i]= missingGranule( request, readAhead, urls[i], files[i] );
+            } else {
+                URL url= mergedUrl( urls[i], urls[j] );
+                GranuleSplitter splitter= new GranuleSplitter( url, new URLInputStreamProvider(url,upstream),
+                    Arrays.copyOfRange( files, i, j+1 ), Arrays.copyOfRange( starts, i, j+1 ), 
+                    recLength, cacheIndex, compress );
+                splitter.setCommitListener( compactWhenCommitted( request ) );
+                splitter.start( splitFetcher );
+                readAhead.cancelWhenClosed( splitter );
+                for ( int k=i; k<=j; k++ ) {
+                    result[k]= splitter.granule( k-i, dataTee( request, urls[k], files[k] ) );
+                }
+            }
+            i= j+1;
+        }
+        return result;
+    }
+    
+    /**
+     * return the data URL for the times from the start of the first URL to the stop of the last.
+     * @param first the URL for the first granule
+     * @param last the URL for the last granule
+     * @return the URL
+     * @throws MalformedURLException 
+     */
+    private URL mergedUrl( URL first, URL last ) throws MalformedURLException {
+        Map<String,String> pp= paramSplit( first.getQuery() );
+        Map<String,String> pplast= paramSplit( last.getQuery() );
+        for ( String n: new String[] { "stop", "time.max" } ) {
+            if ( pp.containsKey(n) ) pp.put( n, pplast.get(n) );
+        }
+        return new URL( first.getProtocol(), first.getHost(), first.getPort(), first.getPath() + "?" + paramJoin(pp) );
+    }
+    
+    /**
+     * return a provider which opens the provider which will be in the array, once the array is filled in.
+     */
+    private static InputStreamProvider later( InputStreamProvider[] providers, int i ) {
+        return () -> providers[i].openInputStream();
+    }
+    
+    /**
+     * return the cache file for the same granule in another format.
+     * @param cacheFile the cache file, like 20240101,A,B.csv
+     * @param format the format, like "binary"
+     * @return the file, like 20240101,A,B.binary
+     */
+    private static File granuleInFormat( File cacheFile, String format ) {
+        String name= cacheFile.getName();
+        return new File( cacheFile.getParentFile(), name.substring( 0, name.lastIndexOf('.')+1 ) + format );
+    }
+    
+    /**
+     * return the data URL requesting another format.
+     * @param url the data URL
+     * @param format the format, like "binary"
+     * @return the URL with the format
+     * @throws MalformedURLException 
+     */
+    private URL urlInFormat( URL url, String format ) throws MalformedURLException {
+        Map<String,String> pp= paramSplit( url.getQuery() );
+        pp.put( "format", format );
+        return new URL( url.getProtocol(), url.getHost(), url.getPort(), url.getPath() + "?" + paramJoin(pp) );
+    }
+    
+    /**
+     * return true if the remote server lists binary in its capabilities.  The capabilities
+     * are read through the cache, and the answer is kept in memory for each server.
+     * @param request the request
+     * @return true if binary can be requested.
+     */
+    private boolean upstreamSupportsBinary( HapiRequest request ) {
+        String k= request.host().toString();
+        try {
+            return metadata.get( "binary " + k, () -> {
+                try ( InputStream ins= getInputStream( new URL( k + "/capabilities" ) ) ) {
+                    JSONObject capabilities= new JSONObject( new String( ins.readAllBytes(), "UTF-8" ) );
+                    JSONArray formats= capabilities.optJSONArray("outputFormats");
+                    for ( int i=0; formats!=null && i<formats.length(); i++ ) {
+                        if ( "binary".equals( formats.getString(i) ) ) return true;
+                    }
+                    return false;
+                } catch ( IOException | JSONException | IllegalArgumentException ex ) {
+                    logger.log( Level.FINE, "unable to read capabilities of "+k, ex );
+                    return false;
+                }
+            } );
+        } catch ( IOException ex ) {
+            return false;
+        }
+    }
+    
+    /**
+     * return the info describing the records of the data request, which have the
+     * parameters requested, in the order of the info.
+     * @param request the request
+     * @return the info
+     * @throws IOException 
+     */
+    private JSONObject infoForRequest( HapiRequest request ) throws IOException {
+        JSONObject info= infoForDataset(request);
+        if ( request.parameters()==null ) {
+            return info;
+        } else {
+            return metadata.get( "info " + infoForData(request) + "&parameters=" + request.parameters(),
+                () -> HapiUtil.selectParameters( info, Arrays.asList( request.parameters().split(",") ) ) );
+        }
+    }
+    
+    /**
+     * return the layout of the binary records of the data request, which is made once
+     * from the info and kept in memory with it.
+     * @param request the request
+     * @return the layout
+     * @throws IOException 
+     */
+    private RecordLayout layoutForRequest( HapiRequest request ) throws IOException {
+        return metadata.get( "layout " + infoForData(request) + "&parameters=" + request.parameters(),
+            () -> RecordLayout.of( infoForRequest(request) ) );
+    }
+    
+    private static InputStreamProvider binaryToCsv( RecordLayout layout, InputStreamProvider binary ) {
+        return () -> new BinaryToCsvDataInputStream( layout, binary.openInputStream() );
+    }
+    
+    private static InputStreamProvider csvToBinary( RecordLayout layout, InputStreamProvider csv ) {
+        return () -> new CsvToBinaryDataInputStream( layout, csv.openInputStream() );
+    }
+    
+    /**
+     * look for a fresh columnar granule for the same day as the cache file, which contains all the
+     * parameters requested, and return a provider which reads the parameters and times requested 
+     * in the format requested.
+     * @param request the request
+     * @param cacheFile the granule which is not in the cache.
+     * @param start the start time when the granule must also be trimmed in time, or null.
+     * @param stop the stop time, or null.
+     * @return null if there is no such granule, or the provider.
+     * @throws IOException 
+     */
+    private InputStreamProvider columnarGranule( HapiRequest request, File cacheFile, String start, String stop ) throws IOException {
+        Superset superset= findSuperset( request, cacheFile, ColumnarGranule.EXTENSION );
+        if ( superset==null ) {
+            return null;
+        }
+        File file= superset.file();
+        String[] names= request.parameters()==null ? null : request.parameters().split(",");
+        RecordLayout layout= "binary".equals( request.format() ) ? null : layoutForRequest(request);
+        return () -> {
+            ColumnarGranule granule= ColumnarGranule.read( file );
+            InputStream ins= granule.openInputStream( names, start, stop );
+            if ( layout!=null ) {
+                ins= new BinaryToCsvDataInputStream( layout, ins );
+            }
+            return ins;
+        };
+    }
+    
+    /**
+     * return the stream, arranging for the granules it reads to be unpinned and compacted when it is closed,
+     * so that they are not removed while they are being read.
+     * @param ins the stream
+     * @param request the request, which identifies the dataset of the granules.
+     * @param granules the CSV or binary granules read by the stream, which were pinned by {@link #readFresh}.
+     * @return the stream
+     */
+    private InputStream compactWhenClosed( InputStream ins, HapiRequest request, List<File> granules ) {
+        if ( cacheDirective.storageFormat()!=StorageFormat.COLUMNAR || granules.isEmpty() ) {
+            return ins;
+        }
+        return new FilterInputStream(ins) {
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    unpin( granules );
+                    for ( File f: granules ) {
+                        maybeCompact( request, f );
+                    }
+                }
+            }
+        };
+    }
+    
+    /**
+     * unpin the granules pinned by {@link #readFresh} and {@link #pinMissing}.
+     * @param granules the granules
+     */
+    private static void unpin( List<File> granules ) {
+        for ( File f: granules ) {
+            GranuleLocks.unpin( f );
+        }
+    }
+    
+    /**
+     * when the cache stores columnar granules, convert the granule to a columnar granule in the
+     * background, and then remove it.  The columnar granule keeps the time the granule was written,
+     * so it is just as fresh.  The granule is left in place when another stream will read it, or
+     * when it is replaced while it is converted, and is compacted when it is read again.
+     * @param request the request, which identifies the dataset of the granule.
+     * @param cacheFile the granule, in CSV or binary.
+     */
+    private void maybeCompact( HapiRequest request, File cacheFile ) {
+        if ( cacheDirective.storageFormat()!=StorageFormat.COLUMNAR || granuleName( cacheFile ).contains("_") ) {
+            return;
+        }
+        if ( !compacting.add( cacheFile.getPath() ) ) {
+            return;
+        }
+        compactor.submit( () -> {
+            File hcolFile= granuleInFormat( cacheFile, ColumnarGranule.EXTENSION );
+            try {
+                CacheIndex.Entry entry= cacheIndex.get( cacheFile );
+                if ( entry==null || GranuleLocks.isPinned( cacheFile ) ) {
+                    return;
+                }
+                JSONObject info= infoForDataset(request);
+                if ( entry.parameters()!=null ) {
+                    info= HapiUtil.selectParameters( info, parametersIn( infoNames(info), entry ) );
+                }
+                boolean csv= cacheFile.getName().endsWith(".csv");
+                try ( InputStream ins= csv ? new CsvToBinaryDataInputStream( RecordLayout.of(info), new FileInputStreamProvider(cacheFile).openInputStream() ) 
+                    : new FileInputStreamProvider(cacheFile).openInputStream() ) {
+                    ColumnarGranule.write( info, ins, hcolFile );
+                }
+                Lock lock= GranuleLocks.writeLock( cacheFile );
+                lock.lock();
+                try {
+                    if ( GranuleLocks.isPinned( cacheFile ) || cacheIndex.get( cacheFile )!=entry ) {
+                        hcolFile.delete(); // read or replaced while it was converted.
+                        cacheIndex.update( hcolFile );
+                        return;
+                    }
+                    hcolFile.setLastModified( entry.lastModified() );
+                    cacheIndex.update( hcolFile );
+                    cacheIndex.remove( cacheFile );
+                    cacheFile.delete();
+                    CsvTimeIndex.indexFileFor( cacheFile ).delete();
+                    CacheFileWriter.validatorFileFor( cacheFile ).delete();
+                } finally {
+                    lock.unlock();
+                }
+            } catch ( IOException | RuntimeException ex ) {
+                logger.log( Level.WARNING, "unable to compact "+cacheFile, ex );
+            } finally {
+                compacting.remove( cacheFile.getPath() );
+            }
+        } );
+    }
+    
     /**
      * return the InputStream for the URL.  This might be sourced by URL.getInputStream, or
      * maybe from files, or a combination of both.
@@ -405,31 +1199,33 @@ public class HapiCache2024 {
      * @return
      * @throws IOException 
      */
-    private InputStream getInputStreamCSV(URL tmpUrl) throws IOException {
+    private InputStream getInputStreamCSV(URL tmpUrl, boolean acceptGzip) throws IOException {
+        List<File> toCompact= new ArrayList<>();
         try {
-            File base = cacheDirective.rootCacheDir();
-            if ( base.toString().equals("") ) {
-                base= new File( new File( System.getProperty("user.home") ), "hapi-cache"  );
-            }
+            File base = cacheRoot;
             
             HapiRequest request= parseHapiRequest(tmpUrl);
-            String[] parameters;
-            if ( request.parameters()==null ) {
-                parameters= null;
-            } else {
-                parameters= request.parameters().split(",");
-            }
             CacheHit hit=pathForUrl(request,true,true);
             String path= hit.files[0];
             File cacheFile= new File( base +  File.separator + path );
-            if ( cacheFile.exists() && hit.files.length==1 && cacheFile.lastModified()>lastModifiedRequirement ) {
+            File otherFile= granuleInFormat( cacheFile, "binary" );
+            if ( hit.files.length==1 && !cacheIndex.isFresh( cacheFile, lastModifiedRequirement() ) 
+                    && readFresh( otherFile, toCompact ) ) {
+                InputStreamProvider data= binaryToCsv( layoutForRequest(request), new FileInputStreamProvider(otherFile) );
                 if ( "header".equals(request.include()) ) {
-                    URL headerUrl= infoForData(request);
-                    InputStream ins= getInputStream(headerUrl);
-                    return new ConcatenateInputStream( 
-                        new PrepHeaderInputStreamProvider(parameters,true,ins), new SimpleInputStreamProvider( new FileInputStream(cacheFile) ) );
+                    return compactWhenClosed( new ConcatenateInputStream( header(request), data ),
+                        request, toCompact );
                 } else {
-                    return new FileInputStream(cacheFile);
+                    return compactWhenClosed( data.openInputStream(), request, toCompact );
+                }
+            }
+            if ( hit.files.length==1 && readFresh( cacheFile, toCompact ) ) {
+                if ( "header".equals(request.include()) ) {
+                    return compactWhenClosed( new ConcatenateInputStream( 
+                        header(request), new FileInputStreamProvider(cacheFile) ),
+                        request, toCompact );
+                } else {
+                    return compactWhenClosed( openFresh( cacheFile, acceptGzip ), request, toCompact );
                 }
             } else {
                 CacheHit hit2=pathForUrl(request,false,true);
@@ -449,47 +1245,102 @@ public class HapiCache2024 {
                 }
                 InputStreamProvider[] ins= new InputStreamProvider[hit2.files.length];;
                 URL dataUrl= new URL(sdataUrl.toString());
+                GranuleFetcher.ReadAhead readAhead= null;
                 if ( hit2.files.length==1 && hit2.subsetTime==false && hit2.subsetParameters==false ) {
                     File cacheFile2= new File( base +  File.separator + hit2.files[0] );
-                    if ( cacheFile2.exists() && cacheFile.lastModified()>lastModifiedRequirement ) {
+                    InputStreamProvider superset= columnarGranule( request, cacheFile2, null, null );
+                    if ( superset==null ) {
+                        superset= supersetGranule( request, cacheFile2, null, null, toCompact );
+                    }
+                    if ( superset!=null ) {
+                        ins[0]= superset;
+                    } else if ( cacheIndex.isFresh( cacheFile2, lastModifiedRequirement() ) ) {
                         maybeMkdirsForFile(cacheFile);
-                        ins[0]= new TeeInputStreamProvider( new URLInputStreamProvider(dataUrl),cacheFile2 ); //TODO: huh?
+                        ins[0]= dataTee( request, dataUrl, cacheFile2 ); //TODO: huh?
+                    } else if ( readFresh( granuleInFormat( cacheFile2, "binary" ), toCompact ) ) {
+                        ins[0]= binaryToCsv( layoutForRequest(request), new FileInputStreamProvider( granuleInFormat( cacheFile2, "binary" ) ) );
+                    } else if ( upstreamSupportsBinary(request) ) {
+                        File binaryFile= granuleInFormat( cacheFile2, "binary" );
+                        maybeMkdirsForFile(binaryFile);
+                        pinMissing( binaryFile, toCompact );
+                        readAhead= granuleFetcher.readAhead();
+                        URL binaryUrl= urlInFormat(dataUrl,"binary");
+                        ins[0]= binaryToCsv( layoutForRequest(request), 
+                            missingGranule( request, readAhead, binaryUrl, binaryFile ) );
+                        readAhead.start();
                     } else {
                         maybeMkdirsForFile(cacheFile2);
-                        ins[0]= new TeeInputStreamProvider( new URLInputStreamProvider(dataUrl),cacheFile2 );
+                        pinMissing( cacheFile2, toCompact );
+                        readAhead= granuleFetcher.readAhead();
+                        ins[0]= missingGranule( request, readAhead, dataUrl, cacheFile2 );
+                        readAhead.start();
                     }
                 } else {
+                    readAhead= granuleFetcher.readAhead();
+                    RecordLayout layout= null; // for binary granules, only made when needed.
+                    URL[] missingUrls= new URL[hit2.files.length];
+                    File[] missingFiles= new File[hit2.files.length];
+                    InputStreamProvider[] missing= new InputStreamProvider[hit2.files.length];
                     for ( int i=0; i<hit2.files.length; i++ ) {
                         File cacheFile2= new File( base +  File.separator + hit2.files[i] );
+                        File binaryFile= granuleInFormat( cacheFile2, "binary" );
                         String start= request.start();
                         String stop= request.stop();
-                        if ( cacheFile2.exists() && cacheFile2.lastModified()>lastModifiedRequirement ) {
+                        InputStreamProvider superset;
+                        if ( readFresh( cacheFile2, toCompact ) ) {
                             ins[i]= new TimeSubsetCsvDataInputStreamProvider( start, stop, new FileInputStreamProvider(cacheFile2) );
+                        } else if ( readFresh( binaryFile, toCompact ) ) {
+                            if ( layout==null ) layout= layoutForRequest(request);
+                            ins[i]= binaryToCsv( layout, 
+                                new TimeSubsetBinaryDataInputStreamProvider( layout, start, stop, new FileInputStreamProvider(binaryFile) ) );
+                        } else if ( ( superset= columnarGranule( request, cacheFile2, start, stop ) )!=null ) {
+                            ins[i]= superset;
+                        } else if ( ( superset= supersetGranule( request, cacheFile2, start, stop, toCompact ) )!=null ) {
+                            ins[i]= superset;
+                        } else if ( upstreamSupportsBinary(request) ) {
+                            if ( layout==null ) layout= layoutForRequest(request);
+                            maybeMkdirsForFile(binaryFile);
+                            missingUrls[i]= urlInFormat( hit2.urls[i], "binary" );
+                            missingFiles[i]= binaryFile;
+                            ins[i]= binaryToCsv( layout, new TimeSubsetBinaryDataInputStreamProvider( layout, start, stop, 
+                                later( missing, i ) ) );
                         } else {
                             maybeMkdirsForFile(cacheFile2);
-                            ins[i]= new TimeSubsetCsvDataInputStreamProvider( start, stop, new TeeInputStreamProvider( new URLInputStreamProvider(hit2.urls[i]),cacheFile2) );
+                            missingUrls[i]= hit2.urls[i];
+                            missingFiles[i]= cacheFile2;
+                            ins[i]= new TimeSubsetCsvDataInputStreamProvider( start, stop, later( missing, i ) );
                         }
                     }
+                    int recLength= layout==null ? 0 : layout.recordLength();
+                    System.arraycopy( loadMissing( request, readAhead, hit2.starts, missingUrls, missingFiles, recLength, toCompact ), 0, 
+                        missing, 0, missing.length );
+                    readAhead.start();
                 }
                 
                 if ( "header".equals(request.include()) ) {
                     InputStreamProvider[] ins2= new InputStreamProvider[1+hit2.files.length];
-                    URL headerUrl= infoForData(request);
-                    InputStream headerIns= getInputStream(headerUrl);
-                    ins2[0]= new PrepHeaderInputStreamProvider(parameters,true,headerIns);
+                    ins2[0]= header(request);
                     System.arraycopy(ins, 0, ins2, 1, ins.length);
                     ins= ins2;
                 }
 
                 if ( ins.length==1 ) {
-                    return ins[0].openInputStream();
+                    return compactWhenClosed( openSingle( ins[0], readAhead ), request, toCompact );
                 } else {
-                    return new ConcatenateInputStream( ins );
+                    ConcatenateInputStream result= new ConcatenateInputStream( ins );
+                    if ( readAhead!=null ) {
+                        result.closeWhenClosed( readAhead );
+                    }
+                    return compactWhenClosed( result, request, toCompact );
                 }
                     
             }
         } catch (ParseException ex) {
+            unpin( toCompact );
             throw new IllegalArgumentException(ex);
+        } catch ( IOException | RuntimeException ex ) {
+            unpin( toCompact ); // the stream which would unpin them was not made.
+            throw ex;
         }
     }
     
@@ -500,31 +1351,33 @@ public class HapiCache2024 {
      * @return
      * @throws IOException 
      */
-    private InputStream getInputStreamBinary(URL tmpUrl) throws IOException {
+    private InputStream getInputStreamBinary(URL tmpUrl, boolean acceptGzip) throws IOException {
+        List<File> toCompact= new ArrayList<>();
         try {
-            File base = cacheDirective.rootCacheDir();
-            if ( base.toString().equals("") ) {
-                base = new File( new File( System.getProperty("user.home") ), "hapi-cache"  );
-            }
+            File base = cacheRoot;
             
             HapiRequest request= parseHapiRequest(tmpUrl);
-            String[] parameters;
-            if ( request.parameters()==null ) {
-                parameters= null;
-            } else {
-                parameters= request.parameters().split(",");
-            }
             CacheHit hit=pathForUrl(request,true,true);
             String path= hit.files[0];
             File cacheFile= new File( base +  File.separator + path );
-            if ( cacheFile.exists() && hit.files.length==1 && cacheFile.lastModified()>lastModifiedRequirement ) {
+            File otherFile= granuleInFormat( cacheFile, "csv" );
+            if ( hit.files.length==1 && !cacheIndex.isFresh( cacheFile, lastModifiedRequirement() ) 
+                    && readFresh( otherFile, toCompact ) ) {
+                InputStreamProvider data= csvToBinary( layoutForRequest(request), new FileInputStreamProvider(otherFile) );
                 if ( "header".equals(request.include()) ) {
-                    URL headerUrl= infoForData(request);
-                    InputStream ins= getInputStream(headerUrl);
-                    return new ConcatenateInputStream( 
-                        new PrepHeaderInputStreamProvider(parameters,true,ins), new SimpleInputStreamProvider( new FileInputStream(cacheFile) ) );
+                    return compactWhenClosed( new ConcatenateInputStream( header(request), data ),
+                        request, toCompact );
                 } else {
-                    return new FileInputStream(cacheFile);
+                    return compactWhenClosed( data.openInputStream(), request, toCompact );
+                }
+            }
+            if ( hit.files.length==1 && readFresh( cacheFile, toCompact ) ) {
+                if ( "header".equals(request.include()) ) {
+                    return compactWhenClosed( new ConcatenateInputStream( 
+                        header(request), new FileInputStreamProvider(cacheFile) ),
+                        request, toCompact );
+                } else {
+                    return compactWhenClosed( openFresh( cacheFile, acceptGzip ), request, toCompact );
                 }
             } else {
                 CacheHit hit2=pathForUrl(request,false,true);
@@ -538,54 +1391,84 @@ public class HapiCache2024 {
                 }
                 InputStreamProvider[] ins= new InputStreamProvider[hit2.files.length];;
                 URL dataUrl= new URL(sdataUrl.toString());
+                GranuleFetcher.ReadAhead readAhead= null;
                 if ( hit2.files.length==1 && hit2.subsetTime==false && hit2.subsetParameters==false ) {
                     File cacheFile2= new File( base +  File.separator + hit2.files[0] );
-                    if ( cacheFile2.exists() && cacheFile.lastModified()>lastModifiedRequirement ) {
+                    InputStreamProvider superset= columnarGranule( request, cacheFile2, null, null );
+                    if ( superset==null ) {
+                        superset= supersetGranule( request, cacheFile2, null, null, toCompact );
+                    }
+                    if ( superset!=null ) {
+                        ins[0]= superset;
+                    } else if ( cacheIndex.isFresh( cacheFile2, lastModifiedRequirement() ) ) {
                         maybeMkdirsForFile(cacheFile);
-                        ins[0]= new TeeInputStreamProvider( new URLInputStreamProvider(dataUrl),cacheFile2 ); //TODO: huh?
+                        ins[0]= dataTee( request, dataUrl, cacheFile2 ); //TODO: huh?
+                    } else if ( readFresh( granuleInFormat( cacheFile2, "csv" ), toCompact ) ) {
+                        ins[0]= csvToBinary( layoutForRequest(request), new FileInputStreamProvider( granuleInFormat( cacheFile2, "csv" ) ) );
                     } else {
                         maybeMkdirsForFile(cacheFile2);
-                        ins[0]= new TeeInputStreamProvider( new URLInputStreamProvider(dataUrl),cacheFile2 );
+                        pinMissing( cacheFile2, toCompact );
+                        readAhead= granuleFetcher.readAhead();
+                        ins[0]= missingGranule( request, readAhead, dataUrl, cacheFile2 );
+                        readAhead.start();
                     }
                 } else {
-                    String infoJson= infoJsonForData(request);
-                    JSONObject info;
-                    try {
-                        info = new JSONObject(infoJson);
-                    } catch (JSONException ex) {
-                        throw new RuntimeException(ex);
-                    }
+                    RecordLayout layout= layoutForRequest(request);
+                    readAhead= granuleFetcher.readAhead();
+                    URL[] missingUrls= new URL[hit2.files.length];
+                    File[] missingFiles= new File[hit2.files.length];
+                    InputStreamProvider[] missing= new InputStreamProvider[hit2.files.length];
                     for ( int i=0; i<hit2.files.length; i++ ) {
                         File cacheFile2= new File( base +  File.separator + hit2.files[i] );
                         String start= request.start();
                         String stop= request.stop();
-                        if ( cacheFile2.exists() && cacheFile2.lastModified()>lastModifiedRequirement ) {
-                            ins[i]= new TimeSubsetBinaryDataInputStreamProvider( info, start, stop, new FileInputStreamProvider(cacheFile2) );
+                        InputStreamProvider superset;
+                        File csvFile= granuleInFormat( cacheFile2, "csv" );
+                        if ( readFresh( cacheFile2, toCompact ) ) {
+                            ins[i]= new TimeSubsetBinaryDataInputStreamProvider( layout, start, stop, new FileInputStreamProvider(cacheFile2) );
+                        } else if ( readFresh( csvFile, toCompact ) ) {
+                            ins[i]= csvToBinary( layout, 
+                                new TimeSubsetCsvDataInputStreamProvider( start, stop, new FileInputStreamProvider(csvFile) ) );
+                        } else if ( ( superset= columnarGranule( request, cacheFile2, start, stop ) )!=null ) {
+                            ins[i]= superset;
+                        } else if ( ( superset= supersetGranule( request, cacheFile2, start, stop, toCompact ) )!=null ) {
+                            ins[i]= superset;
                         } else {
                             maybeMkdirsForFile(cacheFile2);
-                            ins[i]= new TimeSubsetBinaryDataInputStreamProvider( info, start, stop, new TeeInputStreamProvider( new URLInputStreamProvider(hit2.urls[i]),cacheFile2) );
+                            missingUrls[i]= hit2.urls[i];
+                            missingFiles[i]= cacheFile2;
+                            ins[i]= new TimeSubsetBinaryDataInputStreamProvider( layout, start, stop, later( missing, i ) );
                         }
                     }
+                    System.arraycopy( loadMissing( request, readAhead, hit2.starts, missingUrls, missingFiles, layout.recordLength(), toCompact ), 0, 
+                        missing, 0, missing.length );
+                    readAhead.start();
                 }
                 
                 if ( "header".equals(request.include()) ) {
                     InputStreamProvider[] ins2= new InputStreamProvider[1+hit2.files.length];
-                    URL headerUrl= infoForData(request);
-                    InputStream headerIns= getInputStream(headerUrl);
-                    ins2[0]= new PrepHeaderInputStreamProvider(parameters,true,headerIns);
+                    ins2[0]= header(request);
                     System.arraycopy(ins, 0, ins2, 1, ins.length);
                     ins= ins2;
                 }
 
                 if ( ins.length==1 ) {
-                    return ins[0].openInputStream();
+                    return compactWhenClosed( openSingle( ins[0], readAhead ), request, toCompact );
                 } else {
-                    return new ConcatenateInputStream( ins );
+                    ConcatenateInputStream result= new ConcatenateInputStream( ins );
+                    if ( readAhead!=null ) {
+                        result.closeWhenClosed( readAhead );
+                    }
+                    return compactWhenClosed( result, request, toCompact );
                 }
                     
             }
         } catch (ParseException ex) {
+            unpin( toCompact );
             throw new IllegalArgumentException(ex);
+        } catch ( IOException | RuntimeException ex ) {
+            unpin( toCompact ); // the stream which would unpin them was not made.
+            throw ex;
         }
     }
     
@@ -1,8 +1,9 @@
 
 package hapi.cache;
 
-import java.util.logging.Level;
-import java.util.logging.Logger;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
 import org.codehaus.jettison.json.JSONArray;
 import org.codehaus.jettison.json.JSONException;
 import org.codehaus.jettison.json.JSONObject;
@@ -14,44 +15,14 @@ import org.codehaus.jettison.json.JSONObject;
 public class HapiUtil {
 
     /**
-     * return the number of bytes each record of the info will take.
+     * return the number of bytes each record of the info will take.  Streams should
+     * use the {@link RecordLayout}, which is made once for the info.
      * @param info
      * @return
      * @throws IllegalArgumentException if info is not parseable
      */
     public static int bytesPerRec(JSONObject info) throws IllegalArgumentException {
-        
-        int recordLengthBytes = 0;
-        JSONArray pds;
-        try {
-            pds = info.getJSONArray("parameters");
-        } catch (JSONException ex) {
-            throw new IllegalArgumentException(ex);
-        }
-        for (int i = 0; i < pds.length(); i++) {
-            try {
-                JSONObject param = pds.getJSONObject(i);
-                String type = param.getString("type");  //TODO: verify exception if type is not found.
-                int length = param.optInt("length", 1);
-                if (param.has("size")) {
-                    JSONArray dims = param.getJSONArray("size");
-                    for (int j = 0; j < dims.length(); j++) {
-                        length = length * dims.getInt(j);
-                    }
-                }
-                switch (type) {
-                    case "isotime" -> recordLengthBytes += length;
-                    case "string" -> recordLengthBytes += length;
-                    case "double" -> recordLengthBytes += 8 * length;
-                    case "int" -> recordLengthBytes += 4 * length;
-                    default -> {
-                    }
-                }
-            } catch (JSONException ex) {
-                Logger.getLogger(ParameterSubsetBinaryDataInputStream.class.getName()).log(Level.SEVERE, null, ex);
-            }
-        }
-        return recordLengthBytes;
+        return RecordLayout.of(info).recordLength();
     }
     
     /**
@@ -85,4 +56,96 @@ public class HapiUtil {
         }
     }
     
+    /**
+     * return the number of elements in each record for the parameter, which is the 
+     * product of its size, and is the number of CSV columns it occupies.
+     * @param param the parameter from the info
+     * @return the number of elements
+     * @throws JSONException 
+     */
+    public static int elementCount( JSONObject param ) throws JSONException {
+        int n= 1;
+        if ( param.has("size") ) {
+            JSONArray dims = param.getJSONArray("size");
+            for (int j = 0; j < dims.length(); j++) {
+                n = n * dims.getInt(j);
+            }
+        }
+        return n;
+    }
+    
+    /**
+     * return a copy of the info with only the parameters named, in the order they appear
+     * in the info.  The time parameter is always included.  Unlike subsetParameters,
+     * the names need not be in the order of the info.
+     * @param info the info
+     * @param parameterNames the names of the parameters
+     * @return the new info
+     */
+    public static JSONObject selectParameters( JSONObject info, Collection<String> parameterNames ) {
+        try {
+            JSONObject result= new JSONObject();
+            Iterator<?> keys= info.keys();
+            while ( keys.hasNext() ) {
+                String k= (String)keys.next();
+                result.put( k, info.get(k) );
+            }
+            JSONArray parameters= info.getJSONArray("parameters");
+            JSONArray newParameters= new JSONArray();
+            for ( int i=0; i<parameters.length(); i++ ) {
+                JSONObject parameterObject= parameters.getJSONObject(i);
+                if ( i==0 || parameterNames.contains( parameterObject.getString("name") ) ) {
+                    newParameters.put( parameterObject );
+                }
+            }
+            result.put( "parameters", newParameters );
+            return result;
+        } catch ( JSONException ex ) {
+            throw new IllegalArgumentException(ex);
+        }
+    }
+    
+    /**
+     * return the index of each parameter within the info, for the parameters named, 
+     * in the order they appear in the info.  The time parameter, index 0, is always first.
+     * @param info the info describing the records
+     * @param parameterNames the parameters to find
+     * @return the indices, starting with 0.
+     * @throws IllegalArgumentException if a parameter is not found.
+     */
+    public static int[] parameterIndices( JSONObject info, String[] parameterNames ) {
+        return RecordLayout.of(info).indices(parameterNames);
+    }
+    
+    /**
+     * return the CSV columns of the parameters named, where a parameter with a 
+     * size occupies several columns.  The time column, 0, is always first.
+     * @param info the info describing the records
+     * @param parameterNames the parameters to find
+     * @return the columns, starting with 0.
+     */
+    public static int[] csvColumns( JSONObject info, String[] parameterNames ) {
+        try {
+            JSONArray parameters= info.getJSONArray("parameters");
+            int[] firstColumn= new int[parameters.length()];
+            int ncol= 0;
+            for ( int i=0; i<parameters.length(); i++ ) {
+                firstColumn[i]= ncol;
+                ncol+= elementCount( parameters.getJSONObject(i) );
+            }
+            int[] indices= parameterIndices( info, parameterNames );
+            int[] result= new int[ncol];
+            int n= 0;
+            for ( int i: indices ) {
+                int count= elementCount( parameters.getJSONObject(i) );
+                for ( int j=0; j<count; j++ ) {
+                    result[n++]= firstColumn[i]+j;
+                }
+            }
+            return Arrays.copyOf( result, n );
+        } catch ( JSONException ex ) {
+            throw new IllegalArgumentException(ex);
+        }
+    }
+    
 }
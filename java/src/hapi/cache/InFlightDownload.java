@@ -0,0 +1,277 @@
+
+package hapi.cache;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A download into a cache file which is in progress.  Downloads are registered by
+ * the path of the cache file, so that when a second request misses on the same file,
+ * it can follow the download which is already running, reading the temporary file as it grows,
+ * rather than making another request to the remote server and writing the same file.
+ * <p>
+ * Followers wait with a {@link ReentrantLock} rather than a monitor, so that a follower
+ * running on a virtual thread does not hold on to its carrier thread while it waits.
+ * @author jbf
+ */
+public class InFlightDownload {
+
+    private static final Map<String,InFlightDownload> inFlight= new ConcurrentHashMap<>();
+
+    private final File file;
+    private final ReentrantLock lock= new ReentrantLock();
+    private final Condition changed= lock.newCondition();
+    private File partFile= null;
+    private boolean started= false;
+    private boolean done= false;
+    private IOException failure= null;
+    private long bytesWritten= 0;
+    private int followers= 0;
+    private boolean abandoned= false;
+
+    private InFlightDownload( File file ) {
+        this.file= file;
+    }
+
+    /**
+     * register a new download of the file.  If there is already a download in progress,
+     * then null is returned and the caller should use {@link #follow(java.io.File)}
+     * @param file the cache file
+     * @return the new download, or null if the file is already being downloaded.
+     */
+    public static InFlightDownload register( File file ) {
+        InFlightDownload d= new InFlightDownload(file);
+        InFlightDownload existing= inFlight.putIfAbsent( file.getPath(), d );
+        return existing==null ? d : null;
+    }
+
+    /**
+     * return an InputStream which follows the download already in progress, or null
+     * if there is no download of the file in progress, or it was abandoned by its first client.
+     * @param file the cache file
+     * @return null or the InputStream.
+     * @throws IOException if the download has failed.
+     */
+    public static InputStream follow( File file ) throws IOException {
+        InFlightDownload d= inFlight.get( file.getPath() );
+        if ( d==null ) {
+            return null;
+        } else {
+            return d.newFollower();
+        }
+    }
+
+    /**
+     * the file has been created and bytes will be written.
+     * @param partFile the temporary file which is being written.
+     * @param length the number of bytes already in the file.
+     */
+    public void started( File partFile, long length ) {
+        lock.lock();
+        try {
+            this.partFile= partFile;
+            this.bytesWritten= length;
+            started= true;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * more bytes have been written to the file.
+     * @param n the number of bytes.
+     */
+    public void advance( int n ) {
+        lock.lock();
+        try {
+            bytesWritten+= n;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * the download completed, and all bytes have been written to the file.
+     */
+    public void finish() {
+        lock.lock();
+        try {
+            done= true;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        inFlight.remove( file.getPath(), this );
+    }
+
+    /**
+     * the file was already complete, so no download is needed.  Followers
+     * will read the existing file.
+     * @param length the length of the file.
+     */
+    public void finishExisting( long length ) {
+        lock.lock();
+        try {
+            started= true;
+            bytesWritten= length;
+        } finally {
+            lock.unlock();
+        }
+        finish();
+    }
+
+    /**
+     * the download failed, and followers should fail as well.
+     * @param ex the reason
+     */
+    public void fail( IOException ex ) {
+        lock.lock();
+        try {
+            failure= ex;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        inFlight.remove( file.getPath(), this );
+    }
+
+    /**
+     * the first client went away before the download was complete.  When other requests 
+     * follow the download, false is returned and the download should be completed for them.  
+     * Otherwise the download is abandoned, and requests which try to follow it (until it is
+     * removed with {@link #fail}) make their own download instead, since the remote server
+     * did not fail.
+     * @return true if the download is abandoned, false if it should be completed.
+     */
+    public boolean abandonUnlessFollowed() {
+        lock.lock();
+        try {
+            if ( followers>0 ) {
+                return false;
+            }
+            abandoned= true;
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * return a stream following the download, or null if the download was abandoned.
+     */
+    private InputStream newFollower() throws IOException {
+        lock.lock();
+        try {
+            while ( abandoned && !done && failure==null ) {
+                changed.await(); // the temporary file is still being closed.
+            }
+            if ( abandoned ) {
+                return null;
+            }
+            followers++;
+            while ( !started && !done && failure==null ) {
+                changed.await();
+            }
+            if ( failure!=null ) {
+                throw new IOException( "download failed: "+file, failure );
+            }
+        } catch ( InterruptedException ex ) {
+            throw new InterruptedIOException();
+        } finally {
+            lock.unlock();
+        }
+        if ( partFile==null ) {
+            return new FileInputStreamProvider(file).openInputStream(); // the file was already complete.
+        }
+        try {
+            return new FollowerInputStream( new RandomAccessFile( partFile, "r" ) );
+        } catch ( FileNotFoundException ex ) {
+            // the download completed and was moved into place, and may have been compressed.
+            return new FileInputStreamProvider(file).openInputStream();
+        }
+    }
+
+    /**
+     * wait until more than position bytes are available, returning the number available,
+     * or -1 when the download is complete and there are no more bytes.
+     */
+    private long awaitBytes( long position ) throws IOException {
+        lock.lock();
+        try {
+            while ( bytesWritten<=position && !done && failure==null ) {
+                changed.await();
+            }
+            if ( failure!=null ) {
+                throw new IOException( "download failed: "+file, failure );
+            }
+            if ( bytesWritten>position ) {
+                return bytesWritten-position;
+            } else {
+                return -1;
+            }
+        } catch ( InterruptedException ex ) {
+            throw new InterruptedIOException();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * InputStream which reads the file as it is written.  The download is completed
+     * for it, even when the first client goes away, unless it is closed first.
+     */
+    class FollowerInputStream extends InputStream {
+
+        private final RandomAccessFile raf;
+        private long position= 0;
+        private boolean closed= false;
+
+        FollowerInputStream( RandomAccessFile raf ) {
+            this.raf= raf;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] buf= new byte[1];
+            int bytesRead= read( buf, 0, 1 );
+            return bytesRead==-1 ? -1 : ( buf[0] & 0xFF );
+        }
+
+        @Override
+        public int read( byte[] b, int off, int len ) throws IOException {
+            if ( len==0 ) return 0;
+            long available= awaitBytes( position );
+            if ( available==-1 ) {
+                return -1;
+            }
+            int bytesRead= raf.read( b, off, (int)Math.min( len, available ) );
+            if ( bytesRead>0 ) {
+                position+= bytesRead;
+            }
+            return bytesRead;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if ( closed ) return;
+            closed= true;
+            lock.lock();
+            try {
+                followers--;
+            } finally {
+                lock.unlock();
+            }
+            raf.close();
+        }
+    }
+}
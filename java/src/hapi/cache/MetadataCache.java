@@ -0,0 +1,132 @@
+
+package hapi.cache;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * A bounded in-memory cache of metadata from the remote servers, like the parsed
+ * info of each dataset, so that metadata used on every data request is not read
+ * from the disk and parsed again each time.  Entries expire after the time to live,
+ * and are then loaded again (through the disk cache, which has its own freshness
+ * rules).  When there are more than maxEntries, the least recently used entries
+ * are dropped.
+ * <p>
+ * Concurrent requests for a missing entry share one load, and a load which fails is not
+ * kept, so the next request tries again.  Values must not be modified after they are loaded,
+ * since they are shared by all threads.
+ * @author jbf
+ */
+public class MetadataCache {
+
+    /**
+     * loads the value of an entry.
+     * @param <T> the type of the value.
+     */
+    public interface Loader<T> {
+        T load() throws IOException;
+    }
+
+    private static class Entry {
+        final FutureTask<Object> task;
+        final long expires;
+
+        Entry( FutureTask<Object> task, long expires ) {
+            this.task= task;
+            this.expires= expires;
+        }
+    }
+
+    private final int maxEntries;
+    private final long ttlMillis;
+
+    private final Map<String,Entry> entries;
+
+    /**
+     * @param maxEntries the number of entries kept.
+     * @param ttl the time an entry is kept after it is loaded.
+     */
+    public MetadataCache( int maxEntries, Duration ttl ) {
+        if ( maxEntries<1 ) {
+            throw new IllegalArgumentException("maxEntries must be positive");
+        }
+        this.maxEntries= maxEntries;
+        this.ttlMillis= ttl.toMillis();
+        this.entries= new LinkedHashMap<String,Entry>( 16, 0.75f, true ) {
+            @Override
+            protected boolean removeEldestEntry( Map.Entry<String,Entry> eldest ) {
+                return size()>MetadataCache.this.maxEntries;
+            }
+        };
+    }
+
+    /**
+     * return the value for the key, loading it when it is not in the cache or has expired.
+     * @param <T> the type of the value
+     * @param key the key, which identifies the server, the dataset, and the kind of value.
+     * @param loader loads the value, called without any lock held.
+     * @return the value
+     * @throws IOException when the value cannot be loaded.
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T get( String key, Loader<T> loader ) throws IOException {
+        Entry e;
+        boolean load= false;
+        synchronized ( entries ) {
+            e= entries.get(key);
+            long now= System.currentTimeMillis();
+            if ( e==null || ( e.expires<now && e.task.isDone() ) ) {
+                e= new Entry( new FutureTask<>( loader::load ), now + ttlMillis );
+                entries.put( key, e );
+                load= true;
+            }
+        }
+        if ( load ) {
+            e.task.run();
+        }
+        try {
+            return (T)e.task.get();
+        } catch ( ExecutionException ex ) {
+            synchronized ( entries ) {
+                if ( entries.get(key)==e ) {
+                    entries.remove(key);
+                }
+            }
+            Throwable cause= ex.getCause();
+            if ( cause instanceof IOException ) {
+                throw (IOException)cause;
+            } else if ( cause instanceof RuntimeException ) {
+                throw (RuntimeException)cause;
+            } else {
+                throw new IOException(cause);
+            }
+        } catch ( InterruptedException ex ) {
+            throw new InterruptedIOException( "interrupted while loading "+key );
+        }
+    }
+
+    /**
+     * remove the entry, so that it is loaded again.
+     * @param key the key
+     */
+    public void invalidate( String key ) {
+        synchronized ( entries ) {
+            entries.remove(key);
+        }
+    }
+
+    /**
+     * return the number of entries.
+     * @return the number of entries.
+     */
+    public int size() {
+        synchronized ( entries ) {
+            return entries.size();
+        }
+    }
+}
@@ -3,57 +3,117 @@ package hapi.cache;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.nio.charset.Charset;
-import org.codehaus.jettison.json.JSONObject;
+import java.util.Arrays;
 
 /**
  * Suppose the cache file has Time,A,B,C and you only want Time,B.  This
- * will subset the Binary stream.
+ * will subset the Binary stream.  The records all have the same length, so a plan of
+ * the byte spans to copy from each record is made once, with adjacent parameters merged 
+ * into one span, and then many records are read and copied at once.
  * @author jbf
  */
 public class ParameterSubsetBinaryDataInputStream extends InputStream {
 
-    byte[] nextRec= null;
+    /**
+     * the number of bytes read from the source at once, rounded to whole records.
+     */
+    private static final int BUFFER_SIZE= 65536;
+    
     int[] fields;
     int nfields;
     InputStream ins;
     
     /**
-     * position within the record.  Note this does not support UTF-8 extensions! TODO: support this.
+     * byte offset and length within the original record of each span transmitted.
+     * Adjacent fields in the original record are merged into one span.
      */
-    int recChar=-1;
+    int[] spanOffset;
+    int[] spanLength;
+    
+    int inRecLength;
+    int outRecLength;
+    
+    byte[] inBuf;
     
     /**
-     * we need to support $Y-$j as well as $Y-$m-$d for comparisons.
+     * the number of bytes of a partial record kept at the start of inBuf from the last block.
      */
-    Charset charset= Charset.forName("US-ASCII"); //TODO: UTF-8
+    int inCarry= 0;
+    
+    byte[] outBuf;
+    int outPos= 0;
+    int outLimit= 0;
+    boolean eof= false;
     
     /**
      * 
-     * @param info the original info response, for all parameters
-     * @param fields fields of the original record to transmit
+     * @param layout the layout of the original records, for all parameters
+     * @param fields fields of the original record to transmit, which are the indices 
+     * of the parameters in the layout.  See RecordLayout.indices.
      * @param ins 
      */
-    public ParameterSubsetBinaryDataInputStream( JSONObject info, int[] fields, InputStream ins ) {
+    public ParameterSubsetBinaryDataInputStream( RecordLayout layout, int[] fields, InputStream ins ) {
         this.fields= fields;
         this.nfields= fields.length;
         this.ins= ins;
-        nextRec= new byte[ HapiUtil.bytesPerRec(info) ];
+        inRecLength= layout.recordLength();
+        int nspan= 0;
+        int[] so= new int[nfields];
+        int[] sl= new int[nfields];
+        outRecLength= 0;
+        for ( int i=0; i<nfields; i++ ) {
+            int fo= layout.offset(fields[i]);
+            int fl= layout.length(fields[i]);
+            if ( nspan>0 && so[nspan-1]+sl[nspan-1]==fo ) {
+                sl[nspan-1]+= fl;
+            } else {
+                so[nspan]= fo;
+                sl[nspan]= fl;
+                nspan++;
+            }
+            outRecLength+= fl;
+        }
+        spanOffset= Arrays.copyOf( so, nspan );
+        spanLength= Arrays.copyOf( sl, nspan );
+        int nrec= Math.max( 1, BUFFER_SIZE / inRecLength );
+        inBuf= new byte[ nrec * inRecLength ];
+        outBuf= new byte[ nrec * outRecLength ];
     }
 
     /**
-     * read the next record within the start and stop times.
-     * @return
+     * read the next block of records, keeping only the spans to be transmitted.  The block
+     * ends as soon as a whole record has arrived, so that records from a source which
+     * is still being downloaded are sent as they arrive, and a partial record is kept
+     * for the next block.  A partial record at the end of the stream is dropped.
      * @throws IOException 
      */
-    private byte[] readNextRec() throws IOException {
-        int bytesRead=0;
-        while ( bytesRead<nextRec.length ) {
-            int b= ins.read(nextRec,bytesRead,nextRec.length-bytesRead);
-            if ( b==-1 ) return null;
+    private void readNextBlock() throws IOException {
+        int bytesRead= inCarry;
+        while ( bytesRead<inBuf.length ) {
+            int b= ins.read( inBuf, bytesRead, inBuf.length-bytesRead );
+            if ( b==-1 ) {
+                eof= true;
+                break;
+            }
             bytesRead+= b;
+            if ( bytesRead>=inRecLength ) {
+                break;
+            }
         }
-        return nextRec;
+        int nrec= bytesRead / inRecLength;
+        int k= 0;
+        int nspan= spanOffset.length;
+        for ( int irec=0; irec<nrec; irec++ ) {
+            int recStart= irec * inRecLength;
+            for ( int i=0; i<nspan; i++ ) {
+                System.arraycopy( inBuf, recStart + spanOffset[i], outBuf, k, spanLength[i] );
+                k+= spanLength[i];
+            }
+        }
+        inCarry= bytesRead - nrec * inRecLength;
+        System.arraycopy( inBuf, nrec * inRecLength, inBuf, 0, inCarry );
+        outPos= 0;
+        outLimit= k;
     }
     
     @Override
@@ -64,42 +124,29 @@ public class ParameterSubsetBinaryDataInputStream extends InputStream {
 
     @Override
     public int read(byte[] b, int off, int len) throws IOException {
-        if ( nextRec==null ) {
-            nextRec= readNextRec();
-            recChar= 0;
-        }
-        if ( nextRec==null ) {
-            return -1;
-        }
-        if ( len < nextRec.length-recChar ) {
-            System.arraycopy( nextRec, recChar, b, off, len );
-            recChar= recChar + b.length;
-            return len;
-        } else {
-            int ll= Math.min( len, nextRec.length-recChar );
-            System.arraycopy( nextRec, recChar, b, off, ll );
-            recChar= recChar+ll;
-            if ( recChar==nextRec.length ) {
-                nextRec= readNextRec();
-                recChar= 0;
+        if ( len==0 ) return 0;
+        while ( outPos==outLimit ) {
+            if ( eof ) {
+                return -1;
             }
-            return ll;
-        }        
+            readNextBlock();
+        }
+        int ll= Math.min( len, outLimit-outPos );
+        System.arraycopy( outBuf, outPos, b, off, ll );
+        outPos+= ll;
+        return ll;
     }
     
     @Override
     public int read() throws IOException {
-        if ( recChar==nextRec.length ) {
-            nextRec= readNextRec();
-            recChar= 0;
-        }
-        if ( nextRec==null ) {
-            return -1;
-        } else {
-            byte ch= nextRec[recChar];
-            recChar++;
-            return ch;
-        }
+        byte[] buf= new byte[1];
+        int bytesRead= read( buf, 0, 1 );
+        return bytesRead==-1 ? -1 : ( buf[0] & 0xFF );
+    }
+
+    @Override
+    public void close() throws IOException {
+        ins.close();
     }
     
 }
@@ -1,114 +1,198 @@
-
 package hapi.cache;
 
-import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.nio.charset.Charset;
+import java.util.Arrays;
 
 /**
  * Suppose the cache file has Time,A,B,C and you only want Time,B.  This
- * will subset the CSV stream.
+ * will subset the CSV stream.  The bytes of the records are read into a buffer,
+ * the boundaries of the columns are found, and only the bytes of the
+ * columns to keep are copied.  Quoted fields, which may contain commas,
+ * are handled.
  * @author jbf
  */
 public class ParameterSubsetCsvDataInputStream extends InputStream {
 
-    BufferedReader insb;
-    String nextRec= null;
+    private static final int BUFFER_SIZE= 65536;
+
+    InputStream ins;
     int[] fields;
     int nfields;
-    
+
     /**
-     * position within the record.  Note this does not support UTF-8 extensions! TODO: support this.
+     * the column plan: runs of consecutive columns to keep, so that each run is copied at once.
+     * A parameter with size [3] is three columns, which will be one run.
      */
-    int recChar=-1;
-    
+    int[] spanFirst;
+    int[] spanLast;
+
     /**
-     * we need to support $Y-$j as well as $Y-$m-$d for comparisons.
+     * the last column needed, so that columns after it need not be found.
      */
-    Charset charset= Charset.forName("US-ASCII"); //TODO: UTF-8
-        
+    int maxColumn;
+
+    int[] columnStart;
+    int[] columnEnd;
+
+    byte[] buf= new byte[BUFFER_SIZE];
+    int pos= 0;
+    int limit= 0;
+    boolean eof= false;
+
+    byte[] out= new byte[BUFFER_SIZE];
+    int outPos= 0;
+    int outLimit= 0;
+
     /**
-     * 
-     * @param fields fields of the original record to transmit
-     * @param ins 
+     *
+     * @param fields fields of the original record to transmit, which are the CSV columns,
+     * starting with the time column 0.  See HapiUtil.csvColumns.
+     * @param ins
      */
     public ParameterSubsetCsvDataInputStream( int[] fields, InputStream ins ) {
         this.fields= fields;
         this.nfields= fields.length;
-        insb= new BufferedReader(new InputStreamReader(ins));
+        this.ins= ins;
+        int nspan= 0;
+        int[] first= new int[nfields];
+        int[] last= new int[nfields];
+        for ( int i=0; i<nfields; i++ ) {
+            if ( nspan>0 && fields[i]==last[nspan-1]+1 ) {
+                last[nspan-1]= fields[i];
+            } else {
+                first[nspan]= fields[i];
+                last[nspan]= fields[i];
+                nspan++;
+            }
+            maxColumn= Math.max( maxColumn, fields[i] );
+        }
+        spanFirst= Arrays.copyOf( first, nspan );
+        spanLast= Arrays.copyOf( last, nspan );
+        columnStart= new int[maxColumn+1];
+        columnEnd= new int[maxColumn+1];
     }
 
     /**
-     * read the next record within the start and stop times.
-     * @return
-     * @throws IOException 
+     * find the columns of the line starting at pos.
+     * @return the index of the newline ending the line, or -1 if the line is not complete in the buffer.
      */
-    private String readNextRec() throws IOException {
-        nextRec= insb.readLine();
-        if ( nextRec==null ) return null;
-        nextRec= nextRec+"\n"; // bah copy TODO: inefficiencies 
-        if ( nextRec.length()==1 ) {
-            return nextRec;
+    private int scanLine() {
+        int col= 0;
+        columnStart[0]= pos;
+        boolean inQuote= false;
+        for ( int i=pos; i<limit; i++ ) {
+            byte c= buf[i];
+            if ( inQuote ) {
+                if ( c=='"' ) inQuote= false; // a doubled quote turns it back on.
+            } else if ( c=='"' ) {
+                inQuote= true;
+            } else if ( c==',' ) {
+                if ( col<=maxColumn ) columnEnd[col]= i;
+                col++;
+                if ( col<=maxColumn ) columnStart[col]= i+1;
+            } else if ( c=='\n' ) {
+                if ( col<=maxColumn ) columnEnd[col]= ( i>pos && buf[i-1]=='\r' ) ? i-1 : i;
+                if ( col<maxColumn ) columnEnd[maxColumn]= -1;
+                return i;
+            }
         }
-        boolean isRecord= nextRec.charAt(0)=='1' || nextRec.charAt(0)=='2';
-        if ( isRecord ) {
-            String[] ss= nextRec.split(",",-2);
-            StringBuilder sb= new StringBuilder(ss[0]);
-            for ( int i=1; i<nfields; i++ ) {
-                sb.append(',');
-                sb.append(ss[fields[i]]);
+        return -1;
+    }
+
+    /**
+     * subset the complete lines in the buffer, until the output buffer is full.
+     */
+    private void processLines() throws IOException {
+        outPos= 0;
+        outLimit= 0;
+        while ( pos<limit ) {
+            int nl= scanLine();
+            if ( nl==-1 ) {
+                return;
             }
-            return sb.toString();
+            if ( outLimit + ( nl+1-pos ) > out.length ) {
+                if ( outLimit>0 ) return;
+                out= Arrays.copyOf( out, nl+1-pos );
+            }
+            boolean isRecord= buf[pos]=='1' || buf[pos]=='2';
+            if ( isRecord ) {
+                if ( columnEnd[maxColumn]==-1 ) {
+                    throw new IOException("record has fewer fields than expected: "+new String(buf,pos,nl-pos,"US-ASCII"));
+                }
+                for ( int i=0; i<spanFirst.length; i++ ) {
+                    if ( i>0 ) out[outLimit++]= ',';
+                    int s= columnStart[spanFirst[i]];
+                    int len= columnEnd[spanLast[i]]-s;
+                    System.arraycopy( buf, s, out, outLimit, len );
+                    outLimit+= len;
+                }
+                out[outLimit++]= '\n';
+            } else {
+                System.arraycopy( buf, pos, out, outLimit, nl+1-pos );
+                outLimit+= nl+1-pos;
+            }
+            pos= nl+1;
         }
-        return nextRec;
     }
-    
+
+    /**
+     * read more bytes into the buffer, moving the unprocessed bytes to the beginning.
+     */
+    private void fill() throws IOException {
+        if ( pos>0 ) {
+            System.arraycopy( buf, pos, buf, 0, limit-pos );
+            limit-= pos;
+            pos= 0;
+        }
+        if ( limit==buf.length ) {
+            buf= Arrays.copyOf( buf, buf.length*2 );
+        }
+        int bytesRead= ins.read( buf, limit, buf.length-limit );
+        if ( bytesRead==-1 ) {
+            eof= true;
+            if ( limit>0 ) { // last line has no newline.
+                if ( limit==buf.length ) buf= Arrays.copyOf( buf, buf.length+1 );
+                buf[limit++]= '\n';
+            }
+        } else {
+            limit+= bytesRead;
+        }
+    }
+
     @Override
     public int read(byte[] b) throws IOException {
-        return read( b, 0, b.length );        
+        return read( b, 0, b.length );
     }
-    
 
     @Override
     public int read(byte[] b, int off, int len) throws IOException {
-        if ( nextRec==null ) {
-            nextRec= readNextRec();
-            recChar= 0;
-        }
-        if ( nextRec==null ) {
-            return -1;
-        }
-        if ( len < nextRec.length()-recChar ) {
-            System.arraycopy( nextRec.getBytes( charset ), recChar, b, off, len );
-            recChar= recChar + b.length;
-            return len;
-        } else {
-            int ll= Math.min( len, nextRec.length()-recChar );
-            System.arraycopy( nextRec.getBytes( charset ), recChar, b, off, ll );
-            recChar= recChar+ll;
-            if ( recChar==nextRec.length() ) {
-                nextRec= readNextRec();
-                recChar= 0;
+        if ( len==0 ) return 0;
+        while ( outPos==outLimit ) {
+            processLines();
+            if ( outPos==outLimit ) {
+                if ( eof ) {
+                    return -1;
+                }
+                fill();
             }
-            return ll;
-        }        
+        }
+        int ll= Math.min( len, outLimit-outPos );
+        System.arraycopy( out, outPos, b, off, ll );
+        outPos+= ll;
+        return ll;
     }
-    
+
     @Override
     public int read() throws IOException {
-        if ( recChar==nextRec.length() ) {
-            nextRec= readNextRec();
-            recChar= 0;
-        }
-        if ( nextRec==null ) {
-            return -1;
-        } else {
-            char ch= nextRec.charAt(recChar);
-            recChar++;
-            return ch;
-        }
+        byte[] b= new byte[1];
+        int bytesRead= read( b, 0, 1 );
+        return bytesRead==-1 ? -1 : ( b[0] & 0xFF );
     }
-    
+
+    @Override
+    public void close() throws IOException {
+        ins.close();
+    }
+
 }
@@ -0,0 +1,189 @@
+
+package hapi.cache;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.URL;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * fills the cache ahead of time, for example overnight, so that later requests are
+ * read from the cache.  Each data request is broken into the requests for its granules,
+ * see {@link HapiCache2024#granuleRequests(URL)}, and granules which are already fresh
+ * are skipped.  The others are read through the cache like any other request, several at
+ * once, which loads them into the cache in the format the cache uses.
+ * <p>
+ * The number of requests made to the remote servers each second can be limited, so
+ * that a large prefetch does not overwhelm a server.  Progress is reported each second.
+ * @author jbf
+ */
+public class Prefetcher {
+
+    private static final Logger logger= Logger.getLogger(Prefetcher.class.getName());
+
+    private static final long REPORT_INTERVAL_MILLIS= 1000;
+
+    /**
+     * the result of a prefetch.
+     * @param granules the number of granules requested.
+     * @param fresh the number of granules which were already fresh in the cache.
+     * @param loaded the number of granules loaded into the cache.
+     * @param failed the number of granules (or requests) which could not be loaded.
+     * @param bytes the number of bytes read for the granules loaded.
+     * @param seconds the time taken.
+     */
+    public record Summary( int granules, int fresh, int loaded, int failed, long bytes, double seconds ) {
+
+        /**
+         * return the bytes read per second.
+         * @return the bytes read per second.
+         */
+        public double bytesPerSecond() {
+            return seconds>0 ? bytes/seconds : 0;
+        }
+
+        @Override
+        public String toString() {
+            return String.format( "%d/%d granules, %d fresh, %d loaded, %d failed, %.1f MB in %.1f s (%.2f MB/s)",
+                fresh+loaded+failed, granules, fresh, loaded, failed, bytes/1e6, seconds, bytesPerSecond()/1e6 );
+        }
+    }
+
+    private final HapiCache2024 cache;
+    private final int parallelism;
+
+    /**
+     * the time between requests to the remote servers, or 0 when they are not limited.
+     */
+    private final long intervalNanos;
+
+    /**
+     * the time when the next request to the remote servers may be made.
+     */
+    private long nextRequest= Long.MIN_VALUE;
+
+    private final AtomicInteger fresh= new AtomicInteger();
+    private final AtomicInteger loaded= new AtomicInteger();
+    private final AtomicInteger failed= new AtomicInteger();
+    private final AtomicLong bytes= new AtomicLong();
+
+    /**
+     * @param cache the cache to fill
+     * @param parallelism the number of granules loaded at once.
+     * @param maxRequestsPerSecond the number of granules requested from the remote servers each second, or 0 for no limit.
+     */
+    public Prefetcher( HapiCache2024 cache, int parallelism, double maxRequestsPerSecond ) {
+        if ( parallelism<1 ) {
+            throw new IllegalArgumentException("parallelism must be positive");
+        }
+        if ( maxRequestsPerSecond<0 ) {
+            throw new IllegalArgumentException("maxRequestsPerSecond must not be negative");
+        }
+        this.cache= cache;
+        this.parallelism= parallelism;
+        this.intervalNanos= maxRequestsPerSecond==0 ? 0 : (long)( 1e9 / maxRequestsPerSecond );
+    }
+
+    /**
+     * load the granules of the data requests which are not fresh in the cache.  This returns
+     * when all the granules have been loaded or have failed.
+     * @param requests the HAPI data requests.
+     * @param log where progress is reported, or null.
+     * @return the summary
+     * @throws InterruptedException
+     */
+    public Summary prefetch( List<URL> requests, PrintStream log ) throws InterruptedException {
+        long t0= System.nanoTime();
+
+        // the same granule may be in more than one request.  Strings are compared, because URL.equals resolves hosts.
+        Map<String,URL> granules= new LinkedHashMap<>();
+        for ( URL request: requests ) {
+            try {
+                for ( URL u: cache.granuleRequests(request) ) {
+                    granules.putIfAbsent( u.toString(), u );
+                }
+            } catch ( IOException | RuntimeException ex ) {
+                logger.log( Level.FINE, "unable to find granules of "+request, ex );
+                failed.incrementAndGet();
+                if ( log!=null ) log.println( "failed: "+request+": "+ex );
+            }
+        }
+        int ngranule= granules.size() + failed.get();
+
+        ExecutorService workers= Executors.newFixedThreadPool( parallelism, (r) -> new Thread( r, "hapiCachePrefetch" ) );
+        for ( URL url: granules.values() ) {
+            workers.execute( () -> load( url, log ) );
+        }
+        workers.shutdown();
+        try {
+            while ( !workers.awaitTermination( REPORT_INTERVAL_MILLIS, TimeUnit.MILLISECONDS ) ) {
+                if ( log!=null ) log.println( summary( ngranule, t0 ) );
+            }
+        } finally {
+            workers.shutdownNow();
+        }
+        Summary result= summary( ngranule, t0 );
+        if ( log!=null ) log.println( result );
+        return result;
+    }
+
+    private Summary summary( int ngranule, long t0 ) {
+        return new Summary( ngranule, fresh.get(), loaded.get(), failed.get(), bytes.get(), ( System.nanoTime()-t0 )/1e9 );
+    }
+
+    /**
+     * load the granule into the cache, unless it is fresh.
+     */
+    private void load( URL url, PrintStream log ) {
+        try {
+            if ( cache.isGranuleFresh(url) ) {
+                fresh.incrementAndGet();
+                return;
+            }
+            awaitTurn();
+            try ( InputStream ins= cache.getInputStream( url, false ) ) {
+                bytes.addAndGet( ins.transferTo( OutputStream.nullOutputStream() ) );
+            }
+            loaded.incrementAndGet();
+        } catch ( IOException | RuntimeException ex ) {
+            logger.log( Level.FINE, "unable to load "+url, ex );
+            failed.incrementAndGet();
+            if ( log!=null ) log.println( "failed: "+url+": "+ex );
+        }
+    }
+
+    /**
+     * wait until the next request to the remote servers may be made.
+     */
+    private void awaitTurn() throws InterruptedIOException {
+        if ( intervalNanos==0 ) {
+            return;
+        }
+        long wait;
+        synchronized ( this ) {
+            long now= System.nanoTime();
+            long t= Math.max( now, nextRequest );
+            nextRequest= t + intervalNanos;
+            wait= t - now;
+        }
+        if ( wait>0 ) {
+            try {
+                TimeUnit.NANOSECONDS.sleep( wait );
+            } catch ( InterruptedException ex ) {
+                throw new InterruptedIOException( "interrupted while waiting to make a request" );
+            }
+        }
+    }
+}
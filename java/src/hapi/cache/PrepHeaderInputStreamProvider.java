@@ -1,64 +1,57 @@
 
 package hapi.cache;
 
-import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
-import org.codehaus.jettison.json.JSONException;
-import org.codehaus.jettison.json.JSONObject;
+import java.nio.charset.StandardCharsets;
 
 /**
- * read from the source input stream, inserting comment (#) characters before
- * each line.  This is needed when inserting the header.  This also does the
- * parameter subset operation on the header.
+ * provides the header which is sent before the data, with comment (#) characters 
+ * before each line.  The header is rendered once from the info, see {@link #render},
+ * which also does the parameter subset operation, so that rendered headers can be
+ * kept and sent again without parsing the info.
  * @author jbf
  * @see ParameterSubsetCsvDataInputStream which does a similar modification to the stream
  */
 public class PrepHeaderInputStreamProvider implements InputStreamProvider {
 
-    JSONObject header;
-    boolean addComment;
-    
+    private final byte[] header;
+
+    /**
+     * @param header the header, as rendered by {@link #render}.
+     */
+    public PrepHeaderInputStreamProvider( byte[] header ) {
+        this.header= header;
+    }
+
     /**
-     * 
-     * @param parameterNames 
-     * @param addComment add a hash comment character (#) before the header
-     * @param ins
+     * return the header for the parameters, as it is sent before the data.
+     * @param json the info response
+     * @param parameterNames the parameters, or null for all parameters.
+     * @param addComment add a hash comment character (#) before each line
+     * @return the header, in UTF-8.
      */
-    public PrepHeaderInputStreamProvider( String[] parameterNames, boolean addComment, InputStream ins ) {
-        try {
-            this.addComment= addComment;
-            String json= new String( ins.readAllBytes(), "UTF-8" );
-            ins.close();
-            json= HapiUtil.subsetParameters( json, parameterNames );
-            JSONObject jo= new JSONObject( json );
-            header= jo;
-        } catch (IOException | JSONException ex) {
-            throw new RuntimeException(ex);
+    public static byte[] render( String json, String[] parameterNames, boolean addComment ) {
+        String result= HapiUtil.subsetParameters( json, parameterNames );
+        StringBuilder sb= new StringBuilder( result.length() + 256 );
+        int pos= 0;
+        while ( pos<result.length() ) {
+            int end= result.indexOf( '\n', pos );
+            if ( end==-1 ) end= result.length();
+            if ( addComment ) {
+                sb.append("# ");
+            }
+            sb.append( result, pos, end );
+            sb.append("\n");
+            pos= end+1;
         }
+        return sb.toString().getBytes( StandardCharsets.UTF_8 );
     }
-    
+
     @Override
     public InputStream openInputStream() throws IOException {
-        try {
-            String result= header.toString(4);
-            BufferedReader reader= new BufferedReader(new InputStreamReader(new ByteArrayInputStream(result.getBytes("UTF-8") )));
-            StringBuilder sb= new StringBuilder();
-            String line= reader.readLine();
-            while ( line!=null ) {
-                if ( addComment ) {
-                    sb.append("# ");
-                }
-                sb.append(line);
-                sb.append("\n");
-                line= reader.readLine();
-            }
-            return new ByteArrayInputStream( sb.toString().getBytes("UTF-8") );
-        } catch (JSONException ex) {
-            throw new RuntimeException(ex);
-        }
+        return new ByteArrayInputStream( header );
     }
-    
+
 }
@@ -0,0 +1,254 @@
+
+package hapi.cache;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import org.codehaus.jettison.json.JSONArray;
+import org.codehaus.jettison.json.JSONException;
+import org.codehaus.jettison.json.JSONObject;
+import org.hapiserver.TimeUtil;
+
+/**
+ * The layout of the HAPI binary records described by an info: the name, type, number
+ * of elements, byte offset and width of each parameter, and the length of the record.
+ * This is made once from the info, so that the streams which read and write records
+ * do not look at the JSON for each stream or record.  The first parameter is always the
+ * time, an isotime which is formatted however the server likes, so times are compared
+ * after they are formatted like the time of a record, see {@link #formatTime}.
+ * <p>
+ * Layouts are immutable and may be shared by all threads.
+ * @author jbf
+ */
+public final class RecordLayout {
+
+    /**
+     * the types of HAPI parameters.
+     */
+    public enum Type {
+        ISOTIME, STRING, DOUBLE, INT;
+
+        /**
+         * return the type for the name used in the info, like "double".  The HAPI
+         * specification calls integers "integer", and "int" is also accepted.
+         * @param name the name
+         * @return the type
+         * @throws IllegalArgumentException if the type is not supported.
+         */
+        public static Type of( String name ) {
+            return switch ( name ) {
+                case "isotime" -> ISOTIME;
+                case "string" -> STRING;
+                case "double" -> DOUBLE;
+                case "integer", "int" -> INT;
+                default -> throw new IllegalArgumentException("unsupported type: "+name);
+            };
+        }
+    }
+
+    private final String[] names;
+    private final Type[] types;
+    private final int[] counts;
+    private final int[] widths;
+    private final int[] offsets;
+    private final int recordLength;
+
+    private RecordLayout( String[] names, Type[] types, int[] counts, int[] widths ) {
+        this.names= names;
+        this.types= types;
+        this.counts= counts;
+        this.widths= widths;
+        this.offsets= new int[names.length];
+        int offset= 0;
+        for ( int i=0; i<names.length; i++ ) {
+            offsets[i]= offset;
+            offset+= widths[i] * counts[i];
+        }
+        this.recordLength= offset;
+    }
+
+    /**
+     * make the layout of the records described by the info.
+     * @param info the info
+     * @return the layout
+     * @throws IllegalArgumentException if the info cannot be parsed or has a type which is not supported.
+     */
+    public static RecordLayout of( JSONObject info ) {
+        try {
+            JSONArray parameters= info.getJSONArray("parameters");
+            int n= parameters.length();
+            if ( n==0 ) {
+                throw new IllegalArgumentException("info has no parameters");
+            }
+            String[] names= new String[n];
+            Type[] types= new Type[n];
+            int[] counts= new int[n];
+            int[] widths= new int[n];
+            for ( int i=0; i<n; i++ ) {
+                JSONObject p= parameters.getJSONObject(i);
+                names[i]= p.getString("name");
+                types[i]= Type.of( p.getString("type") );
+                counts[i]= HapiUtil.elementCount(p);
+                widths[i]= switch ( types[i] ) {
+                    case ISOTIME, STRING -> p.getInt("length");
+                    case DOUBLE -> 8;
+                    case INT -> 4;
+                };
+            }
+            return new RecordLayout( names, types, counts, widths );
+        } catch ( JSONException ex ) {
+            throw new IllegalArgumentException(ex);
+        }
+    }
+
+    /**
+     * return the layout of records with only the parameters, in this order.
+     * @param fields the indices of the parameters, see {@link #indices}.
+     * @return the layout
+     */
+    public RecordLayout select( int[] fields ) {
+        int n= fields.length;
+        String[] nn= new String[n];
+        Type[] tt= new Type[n];
+        int[] cc= new int[n];
+        int[] ww= new int[n];
+        for ( int i=0; i<n; i++ ) {
+            nn[i]= names[fields[i]];
+            tt[i]= types[fields[i]];
+            cc[i]= counts[fields[i]];
+            ww[i]= widths[fields[i]];
+        }
+        return new RecordLayout( nn, tt, cc, ww );
+    }
+
+    /**
+     * return the indices of the parameters named, in the order of the layout.  The time
+     * parameter, 0, is always first, and need not be named.
+     * @param parameterNames the names of the parameters
+     * @return the indices, starting with 0.
+     * @throws IllegalArgumentException if a parameter is not found.
+     */
+    public int[] indices( String[] parameterNames ) {
+        List<String> names= Arrays.asList( parameterNames );
+        int[] result= new int[this.names.length];
+        int n= 0;
+        result[n++]= 0;
+        for ( int i=1; i<this.names.length; i++ ) {
+            if ( names.contains( this.names[i] ) ) {
+                result[n++]= i;
+            }
+        }
+        for ( String name: parameterNames ) {
+            boolean found= name.equals( this.names[0] );
+            for ( int i=1; !found && i<n; i++ ) {
+                found= name.equals( this.names[result[i]] );
+            }
+            if ( !found ) throw new IllegalArgumentException("parameter not found: "+name);
+        }
+        return Arrays.copyOf( result, n );
+    }
+
+    /**
+     * return the number of parameters, including time.
+     * @return the number of parameters
+     */
+    public int parameterCount() {
+        return names.length;
+    }
+
+    /**
+     * return the name of the parameter.
+     * @param i the index of the parameter
+     * @return the name
+     */
+    public String name( int i ) {
+        return names[i];
+    }
+
+    /**
+     * return the type of the parameter.
+     * @param i the index of the parameter
+     * @return the type
+     */
+    public Type type( int i ) {
+        return types[i];
+    }
+
+    /**
+     * return the number of elements of the parameter, which is the product of its size.
+     * @param i the index of the parameter
+     * @return the number of elements
+     */
+    public int count( int i ) {
+        return counts[i];
+    }
+
+    /**
+     * return the number of bytes of each element of the parameter.
+     * @param i the index of the parameter
+     * @return the number of bytes
+     */
+    public int width( int i ) {
+        return widths[i];
+    }
+
+    /**
+     * return the offset of the parameter within the record.
+     * @param i the index of the parameter
+     * @return the offset in bytes
+     */
+    public int offset( int i ) {
+        return offsets[i];
+    }
+
+    /**
+     * return the number of bytes of all the elements of the parameter.
+     * @param i the index of the parameter
+     * @return the number of bytes
+     */
+    public int length( int i ) {
+        return widths[i] * counts[i];
+    }
+
+    /**
+     * return the number of bytes in each record.
+     * @return the number of bytes
+     */
+    public int recordLength() {
+        return recordLength;
+    }
+
+    /**
+     * return the number of bytes of the time, which is at the start of each record.
+     * @return the number of bytes
+     */
+    public int timeLength() {
+        return widths[0];
+    }
+
+    /**
+     * return the number of columns in each CSV record, where a parameter with a size
+     * occupies several columns.
+     * @return the number of columns
+     */
+    public int columnCount() {
+        int n= 0;
+        for ( int c: counts ) n+= c;
+        return n;
+    }
+
+    /**
+     * return the time formatted like the time of the record, so that it can be compared
+     * byte-by-byte with the times of the records.
+     * @param buf the buffer containing a record
+     * @param offset the offset of the record in the buffer
+     * @param time the time, an isotime
+     * @return the time, like the time of the record
+     */
+    public byte[] formatTime( byte[] buf, int offset, String time ) {
+        int end= offset;
+        while ( end<offset+widths[0] && buf[end]!=0 ) end++;
+        String atime= new String( buf, offset, end-offset, StandardCharsets.US_ASCII );
+        return TimeUtil.reformatIsoTime( atime, time ).getBytes( StandardCharsets.US_ASCII );
+    }
+}
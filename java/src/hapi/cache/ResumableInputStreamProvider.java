@@ -0,0 +1,54 @@
+
+package hapi.cache;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * An InputStreamProvider for a remote resource which may be able to start 
+ * part way into the resource, so that an interrupted download can be resumed.
+ * Each instance provides one stream, and after it is opened the properties
+ * of the response are available.
+ * 
+ * @author jbf
+ */
+public interface ResumableInputStreamProvider extends InputStreamProvider {
+    
+    /**
+     * open the resource starting at the offset, if the source still has the same 
+     * version identified by the validator.  Otherwise the entire resource is
+     * returned, and getOffset will return zero.
+     * @param offset the number of bytes already downloaded.
+     * @param validator the ETag or Last-Modified of the earlier response.
+     * @return the InputStream
+     * @throws IOException 
+     */
+    InputStream openInputStream( long offset, String validator ) throws IOException;
+    
+    /**
+     * open the resource only if it is not the version identified by the validator,
+     * so that a stale copy can be revalidated without downloading it again.
+     * @param validator the ETag or Last-Modified of the earlier response.
+     * @return the InputStream, or null if the resource has not been modified.
+     * @throws IOException 
+     */
+    InputStream openInputStreamIfModified( String validator ) throws IOException;
+    
+    /**
+     * return the offset of the first byte of the stream which was opened.
+     * @return the offset of the first byte
+     */
+    long getOffset();
+    
+    /**
+     * return the validator (ETag or Last-Modified) of the response, or null.
+     * @return the validator or null
+     */
+    String getValidator();
+    
+    /**
+     * return the number of bytes expected in the stream which was opened, or -1 if not known.
+     * @return the number of bytes or -1
+     */
+    long getContentLength();
+}
@@ -0,0 +1,99 @@
+
+package hapi.cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * InputStream which follows the download of a granule, and when the download fails
+ * part way through, reads the rest of the granule from a second download.  So a client
+ * which has already been sent part of the granule, for example from a run of granules
+ * loaded with one request (see {@link GranuleSplitter}), still gets the whole granule
+ * when the connection to the remote server is lost.  The second download is made once,
+ * and the bytes already read are skipped.
+ * @author jbf
+ */
+public class ResumingInputStream extends InputStream {
+
+    private static final Logger logger= Logger.getLogger(ResumingInputStream.class.getName());
+
+    private InputStream ins;
+    private final InputStreamProvider fallback;
+    private final File cacheFile;
+    private long position= 0;
+    private boolean resumed= false;
+
+    /**
+     * @param ins the stream following the download.
+     * @param fallback the provider which loads the granule again.
+     * @param cacheFile the cache file for the granule, used for messages.
+     */
+    public ResumingInputStream( InputStream ins, InputStreamProvider fallback, File cacheFile ) {
+        this.ins= ins;
+        this.fallback= fallback;
+        this.cacheFile= cacheFile;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] buf= new byte[1];
+        int bytesRead= read( buf, 0, 1 );
+        return bytesRead==-1 ? -1 : ( buf[0] & 0xFF );
+    }
+
+    @Override
+    public int read( byte[] b, int off, int len ) throws IOException {
+        while ( true ) {
+            try {
+                int bytesRead= ins.read( b, off, len );
+                if ( bytesRead>0 ) {
+                    position+= bytesRead;
+                }
+                return bytesRead;
+            } catch ( InterruptedIOException ex ) {
+                throw ex;
+            } catch ( IOException ex ) {
+                if ( resumed ) {
+                    throw ex;
+                }
+                resume( ex );
+            }
+        }
+    }
+
+    /**
+     * open the second download, skipping the bytes which have been read.
+     */
+    private void resume( IOException failure ) throws IOException {
+        resumed= true;
+        logger.log( Level.FINE, "download of "+cacheFile+" failed after "+position+" bytes, loading it again", failure );
+        try {
+            ins.close();
+        } catch ( IOException ex ) {
+            logger.log( Level.FINE, null, ex );
+        }
+        InputStream next;
+        try {
+            next= fallback.openInputStream();
+        } catch ( IOException ex ) {
+            ex.addSuppressed( failure );
+            throw ex;
+        }
+        try {
+            next.skipNBytes( position );
+        } catch ( IOException ex ) {
+            next.close();
+            throw ex;
+        }
+        ins= next;
+    }
+
+    @Override
+    public void close() throws IOException {
+        ins.close();
+    }
+}
@@ -0,0 +1,19 @@
+package hapi.cache;
+
+/**
+ * Enumeration of the supported formats for storing data granules in the cache.
+ *
+ * @author lopeznr1
+ */
+public enum StorageFormat
+{
+	/** Granules are stored as the (CSV or binary) response from the remote HAPI server. */
+	RAW,
+
+	/** Granules are converted to compressed per-parameter columns. See {@link ColumnarGranule}. */
+	COLUMNAR,
+
+	/** Granules are stored as the response from the remote HAPI server, compressed with gzip. */
+	GZIP,
+
+}
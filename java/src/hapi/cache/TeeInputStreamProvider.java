@@ -2,75 +2,290 @@
 package hapi.cache;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.concurrent.locks.Lock;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
- * allow the input stream to be sent off to a file.
+ * allow the input stream to be sent off to a file.  The bytes are written to a
+ * temporary file, which is moved to the cache file only when the stream is read
+ * completely, and then the cache index is updated so the file will be found.
+ * Interrupted downloads are resumed when the remote server allows.  When the
+ * file is already being downloaded by another request, the stream follows that 
+ * download instead of making a second request to the remote server.
+ * When a stale cache file has a validator, it is revalidated with a conditional
+ * request, and when it has not been modified only its timestamp is updated.
+ * When the file is a CSV file, a {@link CsvTimeIndex} is written next to it, unless it
+ * is compressed.
  * @author jbf
+ * @see InFlightDownload
  */
 public class TeeInputStreamProvider implements InputStreamProvider {
 
+    private static final Logger logger= Logger.getLogger(TeeInputStreamProvider.class.getName());
+
     InputStreamProvider ins;
-    File out; //TODO: This needs a temporary file, at least
+    File out;
     int totalBytesRead;
+    CacheIndex index;
+    CacheIndex.Entry seen;
+    boolean compress;
+    Consumer<File> commitListener= null;
     
     public TeeInputStreamProvider( InputStreamProvider ins, File out ) {
+        this( ins, out, null );
+    }
+    
+    /**
+     * @param ins the source
+     * @param out the cache file
+     * @param index the index to update when the file is complete, or null.
+     */
+    public TeeInputStreamProvider( InputStreamProvider ins, File out, CacheIndex index ) {
+        this( ins, out, index, false );
+    }
+    
+    /**
+     * @param ins the source
+     * @param out the cache file
+     * @param index the index to update when the file is complete, or null.
+     * @param compress if true, the cache file is stored gzip compressed.
+     */
+    public TeeInputStreamProvider( InputStreamProvider ins, File out, CacheIndex index, boolean compress ) {
+        this.compress= compress;
         this.ins= ins;
         this.out= out;
         this.totalBytesRead=0;
+        this.index= index;
+        this.seen= index==null ? null : index.get(out);
+    }
+    
+    /**
+     * call the listener with the cache file each time it is written completely and found by the index.
+     * @param commitListener null or the listener
+     */
+    public void setCommitListener( Consumer<File> commitListener ) {
+        this.commitListener= commitListener;
     }
     
     @Override
     public InputStream openInputStream() throws IOException {
-        return new TeeInputStream( ins.openInputStream(), new FileOutputStream(out) );
+        while ( true ) {
+            InFlightDownload download= InFlightDownload.register(out);
+            if ( download!=null ) {
+                if ( index!=null && index.get(out)!=seen ) {
+                    // another request completed the file after this one found it missing.
+                    CacheIndex.Entry e= index.get(out);
+                    if ( e!=null ) {
+                        download.finishExisting( e.size() );
+                        return new FileInputStreamProvider(out).openInputStream();
+                    }
+                }
+                try {
+                    return openDownload( download );
+                } catch ( IOException ex ) {
+                    download.fail(ex);
+                    throw ex;
+                }
+            }
+            InputStream following= InFlightDownload.follow(out);
+            if ( following!=null ) {
+                return following;
+            }
+        }
+    }
+    
+    /**
+     * open the upstream and the temporary file, resuming an earlier download when possible.
+     */
+    private InputStream openDownload( InFlightDownload download ) throws IOException {
+        long resumeLength= CacheFileWriter.resumableLength(out);
+        InputStream in;
+        long offset= 0;
+        long expectedLength= -1;
+        String validator= null;
+        if ( ins instanceof ResumableInputStreamProvider ) {
+            ResumableInputStreamProvider r= (ResumableInputStreamProvider)ins;
+            String storedValidator= resumeLength>0 ? null : CacheFileWriter.storedValidator(out);
+            if ( resumeLength>0 ) {
+                in= r.openInputStream( resumeLength, CacheFileWriter.resumeValidator(out) );
+            } else if ( storedValidator!=null && out.exists() ) {
+                in= r.openInputStreamIfModified( storedValidator );
+                if ( in==null ) {
+                    return notModified( download );
+                }
+            } else {
+                in= r.openInputStream();
+            }
+            offset= r.getOffset();
+            validator= r.getValidator();
+            if ( r.getContentLength()>-1 ) {
+                expectedLength= offset + r.getContentLength();
+            }
+        } else {
+            in= ins.openInputStream();
+        }
+        CacheFileWriter writer= new CacheFileWriter( out, offset>0 );
+        writer.setCompress(compress);
+        writer.setIndex(index);
+        if ( offset==0 ) {
+            writer.setValidator(validator);
+        }
+        InputStream prefix= null;
+        if ( offset>0 ) {
+            prefix= new FileRegionInputStream( writer.getPartFile(), 0, offset );
+        }
+        TeeInputStream result= new TeeInputStream( prefix, in, writer, download, expectedLength );
+        if ( out.getName().endsWith(".csv") && !compress ) {
+            result.timeIndex= new CsvTimeIndex.Builder();
+        }
+        download.started( writer.getPartFile(), offset );
+        return result;
+    }
+    
+    /**
+     * the cache file is the same as the remote resource, so mark it as fresh and read it.
+     */
+    private InputStream notModified( InFlightDownload download ) throws IOException {
+        logger.log( Level.FINE, "not modified: {0}", out );
+        Lock lock= GranuleLocks.writeLock(out);
+        lock.lock();
+        try {
+            if ( !out.setLastModified( System.currentTimeMillis() ) ) {
+                logger.log( Level.WARNING, "unable to set the timestamp of {0}", out );
+            }
+            if ( index!=null ) {
+                index.update( out );
+            }
+        } finally {
+            lock.unlock();
+        }
+        download.finishExisting( out.length() );
+        return new FileInputStreamProvider(out).openInputStream();
     }
     
     private class TeeInputStream extends InputStream {
 
-        private final OutputStream out;
+        private final CacheFileWriter out;
+        private InputStream prefix;
         private final InputStream ins;
+        private final InFlightDownload download;
+        private final long expectedLength;
+        private boolean eof= false;
+        private boolean closed= false;
+        private CsvTimeIndex.Builder timeIndex= null;
 
-        public TeeInputStream( InputStream in, OutputStream out ) {
+        /**
+         * @param prefix null or the bytes already downloaded, which are read first.
+         * @param in the remote source
+         * @param out the file
+         * @param download the registered download
+         * @param expectedLength the length of the complete file, or -1 if not known.
+         */
+        public TeeInputStream( InputStream prefix, InputStream in, CacheFileWriter out, InFlightDownload download, long expectedLength ) {
+            this.prefix= prefix;
             this.ins= in;
             this.out= out;
-
+            this.download= download;
+            this.expectedLength= expectedLength;
         }
 
         @Override
         public int read() throws IOException {
-            int i= ins.read();
-            out.write(i);
-            totalBytesRead++;
-            return i;
+            byte[] buf= new byte[1];
+            int bytesRead= read( buf, 0, 1 );
+            return bytesRead==-1 ? -1 : ( buf[0] & 0xFF );
         }
 
         @Override
         public int read(byte[] b) throws IOException {
-            int bytesRead= ins.read(b);
-            if ( bytesRead>0 ) {
-                out.write(b,0,bytesRead);
-                totalBytesRead+=bytesRead;
-            }
-            return bytesRead;
+            return read( b, 0, b.length );
         }
 
         @Override
         public int read(byte[] b, int off, int len) throws IOException {
-            int bytesRead= ins.read(b,off,len);
-            if ( bytesRead>0 ) {
-                out.write(b,off,bytesRead);
-                totalBytesRead+=bytesRead;
+            if ( prefix!=null ) {
+                int bytesRead= prefix.read(b,off,len);
+                if ( bytesRead!=-1 ) {
+                    if ( timeIndex!=null ) timeIndex.update(b,off,bytesRead);
+                    totalBytesRead+=bytesRead;
+                    return bytesRead;
+                }
+                prefix.close();
+                prefix= null;
+            }
+            try {
+                int bytesRead= ins.read(b,off,len);
+                if ( bytesRead>0 ) {
+                    out.write(b,off,bytesRead);
+                    if ( timeIndex!=null ) timeIndex.update(b,off,bytesRead);
+                    totalBytesRead+=bytesRead;
+                    download.advance(bytesRead);
+                } else if ( bytesRead==-1 ) {
+                    eof= true;
+                }
+                return bytesRead;
+            } catch ( IOException ex ) {
+                download.fail(ex);
+                throw ex;
             }
-            return bytesRead;
         }
 
         @Override
         public void close() throws IOException {
+            if ( closed ) return;
+            closed= true;
+            if ( !eof && !download.abandonUnlessFollowed() ) {
+                // other requests are waiting for this file, so finish it for them.
+                try {
+                    transferTo( OutputStream.nullOutputStream() );
+                } catch ( IOException ex ) {
+                    // download.fail has been called
+                }
+            }
+            if ( prefix!=null ) prefix.close();
             ins.close();
-            out.close();
+            boolean complete= eof && ( expectedLength==-1 || out.length()==expectedLength );
+            File cacheFile= TeeInputStreamProvider.this.out;
+            if ( complete ) {
+                try {
+                    out.commit();
+                    if ( timeIndex!=null ) writeTimeIndex( cacheFile );
+                } catch ( IOException ex ) {
+                    out.abort();
+                    complete= false;
+                }
+            } else {
+                out.abort();
+            }
+            if ( index!=null ) {
+                if ( complete ) {
+                    index.update( cacheFile );
+                } else {
+                    index.remove( cacheFile );
+                }
+            }
+            if ( complete ) {
+                download.finish();
+                if ( commitListener!=null ) commitListener.accept( cacheFile );
+            } else {
+                // when the download was abandoned, requests waiting to follow it make their own.
+                download.fail( new IOException("download was not completed: "+cacheFile ) );
+            }
+        }
+
+        private void writeTimeIndex( File cacheFile ) {
+            try {
+                timeIndex.write( cacheFile );
+            } catch ( IOException ex ) {
+                logger.log( Level.WARNING, "unable to write time index for "+cacheFile, ex );
+            }
         }
     
     }
@@ -1,16 +1,18 @@
 
 package hapi.cache;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.nio.charset.Charset;
-import org.codehaus.jettison.json.JSONException;
-import org.codehaus.jettison.json.JSONObject;
-import org.hapiserver.TimeUtil;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 
 /**
  * Suppose the cache file has data from 00:00 to 24:00, and you want
  * data from 10:00 to 12:00.  This will subset a HAPI Binary in time.
+ * When the source is a file, the records are all the same length so the
+ * file is bisected to find the first and last records, and only those bytes are read.
  * @author jbf
  */
 public class TimeSubsetBinaryDataInputStreamProvider implements InputStreamProvider {
@@ -19,22 +21,92 @@ public class TimeSubsetBinaryDataInputStreamProvider implements InputStreamProvi
     String stop;
     InputStreamProvider ins;
     int totalBytesRead;
-    JSONObject info;
+    RecordLayout layout;
     
-    public TimeSubsetBinaryDataInputStreamProvider( JSONObject info, String start, String stop, InputStreamProvider ins ) {
+    public TimeSubsetBinaryDataInputStreamProvider( RecordLayout layout, String start, String stop, InputStreamProvider ins ) {
         this.start= start;
         this.stop= stop;
         this.ins= ins;
         this.totalBytesRead= 0;
-        this.info= info;
+        this.layout= layout;
     }
     @Override
     public InputStream openInputStream() throws IOException {
-        try {
-            return new TimeSubsetBinaryDataInputStream(info,start, stop, ins.openInputStream() );
-        } catch (JSONException ex) {
-            throw new RuntimeException(ex);
+        if ( ins instanceof FileInputStreamProvider ) {
+            File file= ((FileInputStreamProvider)ins).getFile();
+            if ( !FileInputStreamProvider.isGzip(file) ) {
+                return openFileRegion( file );
+            }
+        }
+        return new TimeSubsetBinaryDataInputStream( start, stop, ins.openInputStream() );
+    }
+    
+    /**
+     * bisect the file to find the records within the start and stop times, and 
+     * return an InputStream for just those records.
+     * @param file the file, containing only records.
+     * @return the InputStream 
+     * @throws IOException
+     */
+    private InputStream openFileRegion( File file ) throws IOException {
+        int recLength= layout.recordLength();
+        int timeLength= layout.timeLength();
+        long first, last;
+        try ( FileChannel channel= FileChannel.open( file.toPath(), StandardOpenOption.READ ) ) {
+            long nrec= channel.size() / recLength;
+            if ( nrec==0 ) {
+                return new FileRegionInputStream( file, 0, 0 );
+            }
+            ByteBuffer buf= ByteBuffer.allocate(timeLength);
+            byte[] atime= readTime( channel, 0, recLength, buf ).clone();
+            byte[] bstart= layout.formatTime( atime, 0, start );
+            byte[] bstop= layout.formatTime( atime, 0, stop );
+            first= lowerBound( channel, nrec, recLength, buf, bstart );
+            last= lowerBound( channel, nrec, recLength, buf, bstop );
+        }
+        return new FileRegionInputStream( file, first*recLength, Math.max(first,last)*recLength );
+    }
+    
+    /**
+     * read the time field of the record.
+     */
+    private static byte[] readTime( FileChannel channel, long irec, int recLength, ByteBuffer buf ) throws IOException {
+        buf.clear();
+        long pos= irec*recLength;
+        while ( buf.hasRemaining() ) {
+            if ( channel.read( buf, pos+buf.position() )==-1 ) {
+                throw new IOException("unexpected end of file");
+            }
+        }
+        return buf.array();
+    }
+    
+    /**
+     * return the index of the first record whose time is not before the time, or nrec if there is none.
+     */
+    private static long lowerBound( FileChannel channel, long nrec, int recLength, ByteBuffer buf, byte[] time ) throws IOException {
+        long lo= 0;
+        long hi= nrec;
+        while ( lo<hi ) {
+            long mid= ( lo + hi ) >>> 1;
+            if ( compareTime( readTime( channel, mid, recLength, buf ), time )<0 ) {
+                lo= mid+1;
+            } else {
+                hi= mid;
+            }
+        }
+        return lo;
+    }
+    
+    private static int compareTime( byte[] rec, byte[] time ) {
+        int n= Math.min( rec.length, time.length );
+        for ( int i=0; i<n; i++ ) {
+            int diff= rec[i] - time[i];
+            if ( diff!=0 ) {
+                return diff;
+            }
         }
+        return 0;
     }
 
     private class TimeSubsetBinaryDataInputStream extends InputStream {
@@ -46,24 +118,22 @@ public class TimeSubsetBinaryDataInputStreamProvider implements InputStreamProvi
          */
         int recChar=-1;
 
+        private final String startTime;
+        private final String stopTime;
         private byte[] start;
         private byte[] stop;
-        
-        private JSONObject info;
-        private int timeLength;
 
         /**
          * we need to support $Y-$j as well as $Y-$m-$d for comparisons.
          */
         private boolean doReformatTime=true;
-        Charset charset= Charset.forName("US-ASCII"); //TODO: UTF-8
 
-        public TimeSubsetBinaryDataInputStream( JSONObject info, String start, String stop, InputStream ins ) throws JSONException {
+        public TimeSubsetBinaryDataInputStream( String start, String stop, InputStream ins ) {
+            this.startTime= start;
+            this.stopTime= stop;
             this.start= start.getBytes();
             this.stop= stop.getBytes();
             this.ins= ins;
-            this.info= info;
-            timeLength= info.getJSONArray("parameters").getJSONObject(0).getInt("length");
         }
 
         /**
@@ -73,8 +143,7 @@ public class TimeSubsetBinaryDataInputStreamProvider implements InputStreamProvi
          */
         private byte[] readNextRecAny() throws IOException {
             if ( nextRec==null ) {
-                int reclength= HapiUtil.bytesPerRec(this.info);
-                nextRec= new byte[reclength];
+                nextRec= new byte[layout.recordLength()];
             }
             int bytesRead=0;
             while ( bytesRead<nextRec.length ) {
@@ -109,10 +178,8 @@ public class TimeSubsetBinaryDataInputStreamProvider implements InputStreamProvi
             boolean isRecord= nextRec[0]=='1' || nextRec[0]=='2'; // 1999 or 2000 or ...
             if ( isRecord ) {
                 if ( doReformatTime ) {
-                    int i= timeLength;
-                    String atime= new String( nextRec, 0, i );
-                    start= TimeUtil.reformatIsoTime( atime, new String(start,"UTF-8") ).getBytes();
-                    stop= TimeUtil.reformatIsoTime( atime, new String(stop,"UTF-8") ).getBytes();
+                    start= layout.formatTime( nextRec, 0, startTime );
+                    stop= layout.formatTime( nextRec, 0, stopTime );
                     doReformatTime= false;
                 }
                 while ( nextRec!=null && compare( nextRec, start )<0 ) {
@@ -120,9 +187,6 @@ public class TimeSubsetBinaryDataInputStreamProvider implements InputStreamProvi
                     if ( nextRec==null ) return null;
                 }
                 if ( compare( nextRec, stop )>=0 ) {
-                    new String(nextRec,"UTF-8");
-                    new String(start,"UTF-8");
-                    new String(stop,"UTF-8");
                     return null;
                 }
             }
@@ -148,7 +212,7 @@ public class TimeSubsetBinaryDataInputStreamProvider implements InputStreamProvi
             }
             if ( len < nextRec.length-recChar ) {
                 System.arraycopy( nextRec, recChar, b, off, len );
-                recChar= recChar + b.length;
+                recChar= recChar + len;
                 totalBytesRead+=len;
                 return len;
             } else {
@@ -170,7 +234,7 @@ public class TimeSubsetBinaryDataInputStreamProvider implements InputStreamProvi
             int bytesRead= read(buf);
             if ( bytesRead==1 ) {
                 totalBytesRead+=bytesRead;
-                return buf[0];
+                return buf[0] & 0xFF;
             } else {
                 return -1;
             }
@@ -178,11 +242,9 @@ public class TimeSubsetBinaryDataInputStreamProvider implements InputStreamProvi
 
         @Override
         public void close() throws IOException {
-            int ch= ins.read();
-            while ( ch!=-1 ) { // empty the input, since it might be reading from a URL and Teeing to the cache.
-                ch= ins.read();
-            }
-            ins.close();
+            // empty the input, since it might be reading from a URL and Teeing to the cache.
+            // This is done in the background, since the client does not need these bytes.
+            BackgroundStreams.drain( ins );
         }
         
     }
@@ -1,16 +1,18 @@
 
 package hapi.cache;
 
-import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import org.hapiserver.TimeUtil;
 
 /**
  * Suppose the cache file has data from 00:00 to 24:00, and you want
  * data from 10:00 to 12:00.  This will subset a HAPI CSV in time.
+ * When the source is a file with a {@link CsvTimeIndex}, only the bytes
+ * from about 10:00 to 12:00 are read.
  * @author jbf
  */
 public class TimeSubsetCsvDataInputStreamProvider implements InputStreamProvider {
@@ -28,120 +30,188 @@ public class TimeSubsetCsvDataInputStreamProvider implements InputStreamProvider
     }
     @Override
     public InputStream openInputStream() throws IOException {
+        if ( ins instanceof FileInputStreamProvider ) {
+            File file= ((FileInputStreamProvider)ins).getFile();
+            CsvTimeIndex index= CsvTimeIndex.read( file );
+            if ( index!=null ) {
+                String fstart= TimeUtil.reformatIsoTime( index.getFirstTime(), start );
+                String fstop= TimeUtil.reformatIsoTime( index.getFirstTime(), stop );
+                InputStream region= new FileRegionInputStream( file, index.startOffset(fstart), index.stopOffset(fstop) );
+                return new TimeSubsetCsvDataInputStream( start, stop, region );
+            }
+        }
         return new TimeSubsetCsvDataInputStream(start, stop, ins.openInputStream() );
     }
 
+    /**
+     * filter the records of a CSV stream, working on the bytes in a buffer which is reused.
+     * Lines which are within the start and stop times are found by looking at the bytes
+     * before the first comma, and each run of lines to keep is copied out at once.
+     */
     private class TimeSubsetCsvDataInputStream extends InputStream {
-        BufferedReader insb;
-        String nextRec= null;
+        
+        private static final int BUFFER_SIZE= 65536;
+        
+        InputStream ins;
+        
+        byte[] buf= new byte[BUFFER_SIZE];
+        
+        /**
+         * the start of the line being considered.
+         */
+        int pos= 0;
+        
+        /**
+         * the end of the bytes read into the buffer.
+         */
+        int limit= 0;
+        
+        /**
+         * the bytes from emitStart to pos are lines which are to be sent.
+         */
+        int emitStart= 0;
 
+        boolean eof= false;
+        
         /**
-         * position within the record.  Note this does not support UTF-8 extensions! TODO: support this.
+         * true when a record at or after the stop time has been found.
          */
-        int recChar=-1;
+        boolean done= false;
 
         private String start;
         private String stop;
-
-        /**
-         * we need to support $Y-$j as well as $Y-$m-$d for comparisons.
-         */
-        private boolean doReformatTime=true;
-        Charset charset= Charset.forName("US-ASCII"); //TODO: UTF-8
+        private byte[] bstart;
+        private byte[] bstop;
 
         public TimeSubsetCsvDataInputStream( String start, String stop, InputStream ins ) {
             this.start= start;
             this.stop= stop;
-            insb= new BufferedReader(new InputStreamReader(ins));
+            this.ins= ins;
         }
 
         /**
-         * read the next record within the start and stop times.
-         * @return the record, or null if there is not another
-         * record available.
-         * @throws IOException 
+         * we need to support $Y-$j as well as $Y-$m-$d for comparisons, so the start and stop
+         * are reformatted to match the first record.
+         */
+        private void reformatTimes( int lineStart, int lineEnd ) {
+            int i= lineStart;
+            while ( i<lineEnd && buf[i]!=',' ) i++;
+            String atime= new String( buf, lineStart, i-lineStart, StandardCharsets.US_ASCII );
+            bstart= TimeUtil.reformatIsoTime( atime, start ).getBytes( StandardCharsets.US_ASCII );
+            bstop= TimeUtil.reformatIsoTime( atime, stop ).getBytes( StandardCharsets.US_ASCII );
+        }
+        
+        /**
+         * compare the beginning of the line to the time, like String.compareTo.
          */
-        private String readNextRec() throws IOException {
-            nextRec= insb.readLine();
-            if ( nextRec==null ) return null;
-            nextRec= nextRec+"\n"; // bah copy TODO: inefficiencies 
-            if ( nextRec.length()==1 ) {
-                return nextRec;
+        private int compare( int lineStart, int lineEnd, byte[] time ) {
+            int n= Math.min( lineEnd-lineStart, time.length );
+            for ( int i=0; i<n; i++ ) {
+                int diff= ( buf[lineStart+i] & 0xFF ) - ( time[i] & 0xFF );
+                if ( diff!=0 ) {
+                    return diff;
+                }
             }
-            boolean isRecord= nextRec.charAt(0)=='1' || nextRec.charAt(0)=='2';
-            if ( isRecord ) {
-                if ( doReformatTime ) {
-                    int i= nextRec.indexOf(",");
-                    start= TimeUtil.reformatIsoTime( nextRec.substring(0,i), start );
-                    stop= TimeUtil.reformatIsoTime( nextRec.substring(0,i), stop );
-                    doReformatTime= false;
+            return n<time.length ? -1 : 0;
+        }
+        
+        /**
+         * look at the complete lines in the buffer, extending the run of lines to send
+         * until a line which is not sent is found.
+         */
+        private void scanLines() {
+            while ( !done ) {
+                int nl= pos;
+                while ( nl<limit && buf[nl]!='\n' ) nl++;
+                if ( nl==limit ) {
+                    return;
                 }
-                while ( nextRec!=null && nextRec.compareTo(start)<0 ) {
-                    nextRec= insb.readLine();
-                    if ( nextRec==null ) return null;
+                boolean isRecord= buf[pos]=='1' || buf[pos]=='2';
+                if ( isRecord ) {
+                    if ( bstart==null ) {
+                        reformatTimes( pos, nl );
+                    }
+                    if ( compare( pos, nl, bstop )>=0 ) {
+                        done= true;
+                        return;
+                    }
+                    if ( compare( pos, nl, bstart )<0 ) {
+                        if ( emitStart<pos ) {
+                            return; // send the run before skipping
+                        }
+                        pos= nl+1;
+                        emitStart= pos;
+                        continue;
+                    }
                 }
-                if ( nextRec.substring(0,stop.length()).compareTo(stop)>=0 ) {
-                    return null;
+                pos= nl+1;
+            }
+        }
+        
+        /**
+         * read more bytes into the buffer, moving the unprocessed bytes to the beginning.
+         */
+        private void fill() throws IOException {
+            if ( pos>0 ) {
+                System.arraycopy( buf, pos, buf, 0, limit-pos );
+                limit-= pos;
+                pos= 0;
+                emitStart= 0;
+            }
+            if ( limit==buf.length ) {
+                buf= Arrays.copyOf( buf, buf.length*2 );
+            }
+            int bytesRead= ins.read( buf, limit, buf.length-limit );
+            if ( bytesRead==-1 ) {
+                eof= true;
+                if ( limit>0 ) { // last line has no newline.
+                    if ( limit==buf.length ) buf= Arrays.copyOf( buf, buf.length+1 );
+                    buf[limit++]= '\n';
                 }
-                if ( !nextRec.endsWith("\n") ) nextRec= nextRec+"\n";
+            } else {
+                limit+= bytesRead;
             }
-            return nextRec;
         }
 
         @Override
         public int read(byte[] b) throws IOException {
-            int bytesRead= read( b, 0, b.length );        
-            //totalBytesRead+=bytesRead;
-            return bytesRead;
+            return read( b, 0, b.length );
         }
 
-
         @Override
         public int read(byte[] b, int off, int len) throws IOException {
-            if ( nextRec==null ) {
-                nextRec= readNextRec();
-                recChar= 0;
-            }
-            if ( nextRec==null ) {
-                return -1;
-            }
-            if ( len < nextRec.length()-recChar ) {
-                System.arraycopy( nextRec.getBytes( charset ), recChar, b, off, len );
-                recChar= recChar + b.length;
-                totalBytesRead+=len;
-                return len;
-            } else {
-                int ll= Math.min( len, nextRec.length()-recChar );
-                System.arraycopy( nextRec.getBytes( charset ), recChar, b, off, ll );
-                recChar= recChar+ll;
-                if ( recChar==nextRec.length() ) {
-                    nextRec= readNextRec();
-                    recChar= 0;
+            if ( len==0 ) return 0;
+            while ( emitStart==pos ) {
+                if ( done || ( eof && pos==limit ) ) {
+                    return -1;
                 }
-                totalBytesRead+=ll;
-                return ll;
-            }        
+                scanLines();
+                if ( emitStart==pos && !done ) {
+                    if ( eof ) {
+                        return -1;
+                    }
+                    fill();
+                }
+            }
+            int ll= Math.min( len, pos-emitStart );
+            System.arraycopy( buf, emitStart, b, off, ll );
+            emitStart+= ll;
+            totalBytesRead+= ll;
+            return ll;
         }
 
         @Override
         public int read() throws IOException {
-            byte[] buf= new byte[1];
-            int bytesRead= read(buf);
-            if ( bytesRead==1 ) {
-                totalBytesRead+=bytesRead;
-                return buf[0];
-            } else {
-                return -1;
-            }
+            byte[] b= new byte[1];
+            int bytesRead= read(b);
+            return bytesRead==1 ? ( b[0] & 0xFF ) : -1;
         }
 
         @Override
         public void close() throws IOException {
-            String s= insb.readLine();
-            while ( s!=null ) { // empty the input, since it might be reading from a URL and Teeing to the cache.
-                s= insb.readLine();
-            }
-            insb.close();
+            // empty the input, since it might be reading from a URL and Teeing to the cache.
+            // This is done in the background, since the client does not need these bytes.
+            BackgroundStreams.drain( ins );
         }
         
     }
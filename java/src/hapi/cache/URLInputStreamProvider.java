@@ -6,19 +6,111 @@ import java.io.InputStream;
 import java.net.URL;
 
 /**
+ * provides the response from the remote server.  HTTP requests are made with 
+ * the {@link UpstreamClient}, so that connections are reused, and other URLs are 
+ * opened with URL.openStream.
  * @author jbf
  */
-public class URLInputStreamProvider implements InputStreamProvider {
+public class URLInputStreamProvider implements ResumableInputStreamProvider {
 
     private URL url;
+    private UpstreamClient client;
+    private long offset= 0;
+    private String validator= null;
+    private long contentLength= -1;
     
     public URLInputStreamProvider( URL url ) {
+        this( url, UpstreamClient.getDefault() );
+    }
+    
+    /**
+     * @param url the URL
+     * @param client the client for HTTP requests.
+     */
+    public URLInputStreamProvider( URL url, UpstreamClient client ) {
         this.url= url;
+        this.client= client;
     }
     
     @Override
     public InputStream openInputStream() throws IOException {
-        return url.openStream();
+        return openInputStream( 0, null );
+    }
+
+    @Override
+    public InputStream openInputStream( long offset, String validator ) throws IOException {
+        String protocol= url.getProtocol();
+        if ( !protocol.equals("http") && !protocol.equals("https") ) {
+            this.offset= 0;
+            this.validator= null;
+            this.contentLength= -1;
+            return url.openStream();
+        }
+        boolean resume= offset>0 && validator!=null;
+        UpstreamClient.Response response;
+        if ( resume ) {
+            response= client.get( url, false, "Range", "bytes="+offset+"-", "If-Range", validator );
+        } else {
+            response= client.get( url, true );
+        }
+        InputStream result= response.body();
+        this.offset= 0;
+        if ( resume && response.statusCode()==206 ) {
+            String contentRange= response.header("Content-Range");
+            if ( contentRange!=null && contentRange.startsWith( "bytes "+offset+"-" ) ) {
+                this.offset= offset;
+            } else {
+                result.close();
+                return openInputStream( 0, null );
+            }
+        }
+        String etag= response.header("ETag");
+        if ( etag!=null && !etag.startsWith("W/") ) {
+            this.validator= etag; // only strong validators can be used with If-Range
+        } else {
+            this.validator= response.header("Last-Modified");
+        }
+        this.contentLength= response.contentLength();
+        return result;
+    }
+
+    @Override
+    public InputStream openInputStreamIfModified( String validator ) throws IOException {
+        String protocol= url.getProtocol();
+        if ( !protocol.equals("http") && !protocol.equals("https") ) {
+            return openInputStream();
+        }
+        boolean isETag= validator.startsWith("\"") || validator.startsWith("W/");
+        UpstreamClient.Response response= client.get( url, true, 
+            isETag ? "If-None-Match" : "If-Modified-Since", validator );
+        if ( response.statusCode()==304 ) {
+            response.body().close();
+            return null;
+        }
+        this.offset= 0;
+        String etag= response.header("ETag");
+        if ( etag!=null && !etag.startsWith("W/") ) {
+            this.validator= etag;
+        } else {
+            this.validator= response.header("Last-Modified");
+        }
+        this.contentLength= response.contentLength();
+        return response.body();
+    }
+
+    @Override
+    public long getOffset() {
+        return offset;
+    }
+
+    @Override
+    public String getValidator() {
+        return validator;
+    }
+
+    @Override
+    public long getContentLength() {
+        return contentLength;
     }
     
 }
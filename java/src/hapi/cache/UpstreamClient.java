@@ -0,0 +1,253 @@
+
+package hapi.cache;
+
+import java.io.FileNotFoundException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * The client for requests to remote HAPI servers.  One HttpClient is shared by
+ * all requests, so connections (and TLS sessions) are kept and reused, and
+ * HTTP/2 is used with https servers which offer it.  Plain http requests use HTTP/1.1, since
+ * HTTP/2 there means an h2c upgrade on every new connection, which many servers and proxies
+ * handle badly.  Responses are requested with gzip
+ * content encoding and are decoded as they are read.  No more than maxConnectionsPerHost
+ * responses are open at once for any one host, and a response holds its
+ * permit until it is read to the end or closed.  A request which cannot get a permit
+ * within a while fails with an IOException.
+ * @author jbf
+ */
+public class UpstreamClient {
+
+    /**
+     * the time allowed to make the connection.
+     */
+    private static final Duration CONNECT_TIMEOUT= Duration.ofSeconds(30);
+
+    /**
+     * the time allowed for the response headers to arrive after the request is sent.
+     */
+    private static final Duration RESPONSE_TIMEOUT= Duration.ofSeconds(120);
+
+    /**
+     * the time allowed to wait for one of the connections to the host to be free.
+     */
+    private static final Duration PERMIT_TIMEOUT= Duration.ofSeconds(120);
+
+    private static HttpClient httpClient;
+
+    private static UpstreamClient defaultClient;
+
+    private final int maxConnectionsPerHost;
+
+    private final Map<String,Semaphore> permits= new ConcurrentHashMap<>();
+
+    /**
+     * @param maxConnectionsPerHost the number of responses which may be open at once for each host.
+     */
+    public UpstreamClient( int maxConnectionsPerHost ) {
+        if ( maxConnectionsPerHost<1 ) {
+            throw new IllegalArgumentException("maxConnectionsPerHost must be positive");
+        }
+        this.maxConnectionsPerHost= maxConnectionsPerHost;
+    }
+
+    /**
+     * return the client used when none is specified, which allows 4 connections per host.
+     * @return the client
+     */
+    public static synchronized UpstreamClient getDefault() {
+        if ( defaultClient==null ) {
+            defaultClient= new UpstreamClient(4);
+        }
+        return defaultClient;
+    }
+
+    private static synchronized HttpClient httpClient() {
+        if ( httpClient==null ) {
+            httpClient= HttpClient.newBuilder()
+                .followRedirects( HttpClient.Redirect.NORMAL )
+                .connectTimeout( CONNECT_TIMEOUT )
+                .build();
+        }
+        return httpClient;
+    }
+
+    private Semaphore permitsFor( URL url ) {
+        String host= url.getHost() + ":" + url.getPort();
+        return permits.computeIfAbsent( host, (k) -> new Semaphore( maxConnectionsPerHost, true ) );
+    }
+
+    /**
+     * The response to a request, with the body decoded.
+     */
+    public static class Response {
+        private final int statusCode;
+        private final HttpResponse<InputStream> response;
+        private final InputStream body;
+        private final boolean encoded;
+
+        private Response( HttpResponse<InputStream> response, InputStream body, boolean encoded ) {
+            this.statusCode= response.statusCode();
+            this.response= response;
+            this.body= body;
+            this.encoded= encoded;
+        }
+
+        public int statusCode() {
+            return statusCode;
+        }
+
+        /**
+         * return the value of the response header, or null if it is not present.
+         * @param name the header name, like "ETag"
+         * @return the value or null.
+         */
+        public String header( String name ) {
+            return response.headers().firstValue(name).orElse(null);
+        }
+
+        /**
+         * return the length of the decoded body, or -1 if it is not known, which is
+         * the case when the body was compressed.
+         * @return the length or -1.
+         */
+        public long contentLength() {
+            return encoded ? -1 : response.headers().firstValueAsLong("Content-Length").orElse(-1);
+        }
+
+        /**
+         * return the decoded body, which must be closed.
+         * @return the body
+         */
+        public InputStream body() {
+            return body;
+        }
+    }
+
+    /**
+     * send the GET request.  When the status code is not 2xx, the body is closed and
+     * an IOException is thrown, or FileNotFoundException for 404 and 410, as with URL.openStream.
+     * For 304 (Not Modified), the response has an empty body.
+     * @param url the URL
+     * @param headers additional request headers, as name, value pairs.
+     * @param acceptGzip if true, then the server may compress the response.  This
+     * should be false when requesting a byte range, because the range refers to the
+     * compressed bytes.
+     * @return the response
+     * @throws IOException
+     */
+    public Response get( URL url, boolean acceptGzip, String... headers ) throws IOException {
+        HttpRequest.Builder builder;
+        try {
+            builder= HttpRequest.newBuilder( url.toURI() ).timeout( RESPONSE_TIMEOUT ).GET();
+            builder.version( "https".equals( url.getProtocol() ) ? HttpClient.Version.HTTP_2 : HttpClient.Version.HTTP_1_1 );
+        } catch ( URISyntaxException ex ) {
+            throw new IOException(ex);
+        }
+        if ( acceptGzip ) {
+            builder.header( "Accept-Encoding", "gzip" );
+        }
+        for ( int i=0; i<headers.length; i+=2 ) {
+            builder.header( headers[i], headers[i+1] );
+        }
+        Semaphore semaphore= permitsFor(url);
+        try {
+            if ( !semaphore.tryAcquire( PERMIT_TIMEOUT.toMillis(), TimeUnit.MILLISECONDS ) ) {
+                throw new IOException( "timed out waiting for a connection to "+url.getHost() );
+            }
+        } catch ( InterruptedException ex ) {
+            throw new InterruptedIOException( "interrupted while waiting to connect to "+url.getHost() );
+        }
+        boolean release= true;
+        try {
+            HttpResponse<InputStream> response= httpClient().send( builder.build(), HttpResponse.BodyHandlers.ofInputStream() );
+            int code= response.statusCode();
+            if ( code==304 ) {
+                response.body().close();
+                return new Response( response, InputStream.nullInputStream(), false );
+            }
+            if ( code<200 || code>=300 ) {
+                response.body().close();
+                if ( code==404 || code==410 ) {
+                    throw new FileNotFoundException( url.toString() );
+                } else {
+                    throw new IOException( "Server returned HTTP response code: "+code+" for URL: "+url );
+                }
+            }
+            InputStream body= new PermitInputStream( response.body(), semaphore );
+            release= false;
+            boolean encoded= "gzip".equalsIgnoreCase( response.headers().firstValue("Content-Encoding").orElse("") );
+            if ( encoded ) {
+                try {
+                    body= new GZIPInputStream( body, 65536 );
+                } catch ( IOException ex ) {
+                    body.close();
+                    throw ex;
+                }
+            }
+            return new Response( response, body, encoded );
+        } catch ( InterruptedException ex ) {
+            throw new InterruptedIOException( "interrupted while reading "+url );
+        } finally {
+            if ( release ) {
+                semaphore.release();
+            }
+        }
+    }
+
+    /**
+     * releases the host's permit when the body is read to the end or closed.
+     */
+    private static class PermitInputStream extends FilterInputStream {
+        private Semaphore semaphore;
+
+        PermitInputStream( InputStream in, Semaphore semaphore ) {
+            super(in);
+            this.semaphore= semaphore;
+        }
+
+        private synchronized void release() {
+            if ( semaphore!=null ) {
+                semaphore.release();
+                semaphore= null;
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b= super.read();
+            if ( b==-1 ) release();
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n= in.read( b, off, len );
+            if ( n==-1 ) release();
+            return n;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                release();
+            }
+        }
+    }
+}
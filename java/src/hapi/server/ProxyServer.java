@@ -0,0 +1,297 @@
+package hapi.server;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.codehaus.jettison.json.JSONException;
+import org.codehaus.jettison.json.JSONObject;
+
+import hapi.cache.ChannelTransfer;
+import hapi.cache.GzipFileInputStream;
+import hapi.cache.HapiCache2024;
+
+/**
+ * Embedded HTTP server that proxies HAPI requests to a remote HAPI endpoint via a (shared) {@link HapiCache2024}.
+ * <p>
+ * The following HAPI endpoints are served: about, capabilities, catalog, info, data. The local path /hapi/[endpoint]
+ * is mapped to the remote [endpoint], with the query passed along as is.
+ * <p>
+ * Each request is handled on its own virtual thread (when the runtime supports them) and responses are streamed to
+ * the client with chunked transfer encoding as they are read from the cache (or remote server). Responses are never
+ * buffered in full.
+ *
+ * @author lopeznr1
+ */
+public class ProxyServer implements HttpHandler
+{
+	// Logger
+	private static final Logger logger = Logger.getLogger(ProxyServer.class.getName());
+
+	// Constants
+	private static final String LocalContext = "/hapi";
+	private static final Set<String> ServedEndpointS = Set.of("about", "capabilities", "catalog", "info", "data");
+	private static final String HapiVersion2 = "2.1";
+	private static final String HapiVersion3 = "3.1";
+
+	// Attributes
+	private final HapiCache2024 refHapiCache;
+	private final String remoteEndpoint;
+	private final HttpServer workServer;
+
+	// State vars
+	private volatile String remoteHapiVersion;
+
+	/** Standard Constructor */
+	public ProxyServer(HapiCache2024 aHapiCache, ProxyAttr aProxyAttr) throws IOException
+	{
+		refHapiCache = aHapiCache;
+
+		var tmpEndpoint = aProxyAttr.endpoint().toString();
+		if (tmpEndpoint.endsWith("/") == true)
+			tmpEndpoint = tmpEndpoint.substring(0, tmpEndpoint.length() - 1);
+		remoteEndpoint = tmpEndpoint;
+
+		workServer = HttpServer.create(new InetSocketAddress(aProxyAttr.port()), 0);
+		workServer.createContext(LocalContext, this);
+		workServer.setExecutor(formRequestExecutor());
+	}
+
+	/**
+	 * Starts the server. The server will run (on background threads) until {@link #stop(int)} is called.
+	 */
+	public void start()
+	{
+		workServer.start();
+	}
+
+	/**
+	 * Stops the server. Requests that are in progress are given up to aDelaySec seconds to complete.
+	 */
+	public void stop(int aDelaySec)
+	{
+		workServer.stop(aDelaySec);
+	}
+
+	@Override
+	public void handle(HttpExchange aExchange) throws IOException
+	{
+		try (aExchange)
+		{
+			try
+			{
+				handleRequest(aExchange);
+			}
+			catch (RuntimeException aExp)
+			{
+				// A bug, not a problem with the request: report it, unless the response is already underway
+				logger.log(Level.WARNING, "Failed to handle request: " + aExchange.getRequestURI(), aExp);
+				if (aExchange.getResponseCode() == -1)
+					sendError(aExchange, 500, 1500, "Internal server error: " + aExp);
+			}
+		}
+		catch (IOException aExp)
+		{
+			// The response is already underway (or the client went away); just log it
+			logger.log(Level.FINE, "Failed to complete response: " + aExchange.getRequestURI(), aExp);
+		}
+	}
+
+	/**
+	 * Helper method that serves the request.
+	 */
+	private void handleRequest(HttpExchange aExchange) throws IOException
+	{
+		// Only GET requests are supported
+		if (aExchange.getRequestMethod().equals("GET") == false)
+		{
+			aExchange.getResponseHeaders().set("Allow", "GET");
+			sendError(aExchange, 405, 1500, "Method not allowed: " + aExchange.getRequestMethod());
+			return;
+		}
+
+		// Map the local path onto the remote endpoint
+		var tmpPath = aExchange.getRequestURI().getRawPath().substring(LocalContext.length());
+		var tmpEndpoint = tmpPath.startsWith("/") == true ? tmpPath.substring(1) : tmpPath;
+		if (ServedEndpointS.contains(tmpEndpoint) == false)
+		{
+			sendError(aExchange, 404, 1500, "Unsupported HAPI endpoint: " + tmpPath);
+			return;
+		}
+
+		var tmpQuery = aExchange.getRequestURI().getRawQuery();
+		var tmpUrlStr = remoteEndpoint + "/" + tmpEndpoint;
+		if (tmpQuery != null)
+			tmpUrlStr += "?" + tmpQuery;
+		var tmpUrl = new URL(tmpUrlStr);
+
+		var isGzipOk = acceptsGzip(aExchange);
+		try (var tmpIS = openInputStream(aExchange, tmpUrl, isGzipOk))
+		{
+			if (tmpIS == null)
+				return;
+
+			// Send the headers (length 0 => chunked) and then stream the content
+			var tmpHeaders = aExchange.getResponseHeaders();
+			tmpHeaders.set("Content-Type", getContentType(tmpEndpoint, tmpQuery));
+			if (tmpIS instanceof GzipFileInputStream)
+				tmpHeaders.set("Content-Encoding", "gzip");
+			aExchange.sendResponseHeaders(200, 0);
+
+			var tmpOS = aExchange.getResponseBody();
+			ChannelTransfer.transfer(tmpIS, Channels.newChannel(tmpOS));
+
+			// Complete the response before the stream is closed, since closing may finish loading the cache
+			tmpOS.close();
+		}
+	}
+
+	/**
+	 * Helper method that opens the stream for the HAPI request. On failure, an error response is sent to the client and
+	 * null is returned.
+	 */
+	private InputStream openInputStream(HttpExchange aExchange, URL aUrl, boolean aIsGzipOk) throws IOException
+	{
+		try
+		{
+			return refHapiCache.getInputStream(aUrl, aIsGzipOk);
+		}
+		catch (IllegalArgumentException aExp)
+		{
+			sendError(aExchange, 400, 1400, "Bad request - user input error: " + aExp.getMessage());
+		}
+		catch (FileNotFoundException aExp)
+		{
+			sendError(aExchange, 404, 1500, "Not found at remote server: " + aUrl);
+		}
+		catch (IOException aExp)
+		{
+			logger.log(Level.WARNING, "Failed to read: " + aUrl, aExp);
+			sendError(aExchange, 502, 1500, "Internal server error - upstream request failed: " + aExp.getMessage());
+		}
+
+		return null;
+	}
+
+	/**
+	 * Helper method that sends a HAPI style JSON error response.
+	 */
+	private void sendError(HttpExchange aExchange, int aHttpCode, int aHapiCode, String aMessage) throws IOException
+	{
+		var tmpMessage = aMessage.replace("\\", "\\\\").replace("\"", "\\\"");
+		var tmpVersion = getHapiVersion(aExchange);
+		var tmpJson = "{\"HAPI\":\"" + tmpVersion + "\",\"status\":{\"code\":" + aHapiCode + ",\"message\":\""
+				+ tmpMessage + "\"}}\n";
+		var byteArr = tmpJson.getBytes(StandardCharsets.UTF_8);
+
+		aExchange.getResponseHeaders().set("Content-Type", "application/json");
+		aExchange.sendResponseHeaders(aHttpCode, byteArr.length);
+		aExchange.getResponseBody().write(byteArr);
+	}
+
+	/**
+	 * Helper method that returns the HAPI version reported in an error response.
+	 * <p>
+	 * This is the version advertised in the capabilities of the remote server, so errors match the responses which are
+	 * passed through. It is remembered once it is known. When the capabilities can not be read, the version is the one
+	 * the client used: HAPI 2 when the query has the HAPI 2 names (id, time.min, time.max), otherwise HAPI 3.
+	 */
+	private String getHapiVersion(HttpExchange aExchange)
+	{
+		var retVersion = remoteHapiVersion;
+		if (retVersion != null)
+			return retVersion;
+
+		try (var tmpIS = refHapiCache.getInputStream(new URL(remoteEndpoint + "/capabilities"), false))
+		{
+			var tmpCapabilities = new JSONObject(new String(tmpIS.readAllBytes(), StandardCharsets.UTF_8));
+			retVersion = tmpCapabilities.optString("HAPI", null);
+		}
+		catch (IOException | JSONException | RuntimeException aExp)
+		{
+			logger.log(Level.FINE, "Failed to read the HAPI version of: " + remoteEndpoint, aExp);
+		}
+
+		if (retVersion != null)
+		{
+			remoteHapiVersion = retVersion;
+			return retVersion;
+		}
+
+		var tmpQuery = "&" + Objects.requireNonNullElse(aExchange.getRequestURI().getRawQuery(), "") + "&";
+		if (tmpQuery.contains("&id=") == true || tmpQuery.contains("&time.min=") == true)
+			return HapiVersion2;
+
+		return HapiVersion3;
+	}
+
+	/**
+	 * Helper method that returns true if the client accepts gzip content encoding.
+	 */
+	private static boolean acceptsGzip(HttpExchange aExchange)
+	{
+		for (var aValue : aExchange.getRequestHeaders().getOrDefault("Accept-Encoding", List.of()))
+		{
+			if (aValue.toLowerCase().contains("gzip") == true)
+				return true;
+		}
+
+		return false;
+	}
+
+	/**
+	 * Helper method that returns the content type of the response for the specified endpoint and query.
+	 */
+	private static String getContentType(String aEndpoint, String aQuery)
+	{
+		if (aEndpoint.equals("data") == false)
+			return "application/json";
+
+		if (aQuery != null && ("&" + aQuery + "&").contains("&format=binary&") == true)
+			return "application/octet-stream";
+
+		return "text/csv";
+	}
+
+	/**
+	 * Helper method that returns the executor used to handle requests.
+	 * <p>
+	 * A virtual thread is used per request when the runtime supports it (Java 21+), so slow clients do not tie up
+	 * platform threads. On older runtimes a (cached) pool of daemon platform threads is used instead.
+	 */
+	private static ExecutorService formRequestExecutor()
+	{
+		try
+		{
+			var tmpMethod = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) tmpMethod.invoke(null);
+		}
+		catch (ReflectiveOperationException aExp)
+		{
+			logger.log(Level.INFO, "Virtual threads are not available. Using platform threads.");
+		}
+
+		return Executors.newCachedThreadPool((aRunnable) ->
+		{
+			var retThread = new Thread(aRunnable, "hapiProxyRequest");
+			retThread.setDaemon(true);
+			return retThread;
+		});
+	}
+
+}
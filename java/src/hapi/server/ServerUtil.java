@@ -1,6 +1,10 @@
 package hapi.server;
 
+import java.io.IOException;
+
+import hapi.LogicError;
 import hapi.cache.CacheDirective;
+import hapi.cache.HapiCache2024;
 
 /**
  * Collection of utility methods to support running hapi-cache as a server.
@@ -25,11 +29,21 @@ public class ServerUtil
 		System.out.println("     Binding to port: " + aProxyAttr.port());
 		System.out.println("   Proxy destination: " + aProxyAttr.endpoint());
 
-		// TODO: This is incomplete... Consider the following:
-		// - Rolling your own HTTP* server
-		// - Using Spark (Java) Framework...
-		// - Other frameworks ???
-		System.out.println("\nThe above would be nice but there is no logic... Bailing...\n\n");
+		// Start the server with a cache shared by all requests
+		ProxyServer tmpServer;
+		try
+		{
+			var tmpHapiCache = new HapiCache2024(aCacheDirective);
+			tmpServer = new ProxyServer(tmpHapiCache, aProxyAttr);
+		}
+		catch (IOException aExp)
+		{
+			throw new LogicError("Failed to bind to port: " + aProxyAttr.port(), aExp);
+		}
+		tmpServer.start();
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> tmpServer.stop(1)));
+
+		System.out.println("\nThe proxy server is running. Serving: http://localhost:" + aProxyAttr.port() + "/hapi\n");
 	}
 
 }
@@ -0,0 +1,41 @@
+
+package hapi.cache;
+
+import org.codehaus.jettison.json.JSONObject;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * tests of the layout made from an info.
+ * @author jbf
+ */
+public class RecordLayoutTest {
+
+    private static final String INFO= "{ \"HAPI\":\"3.1\", \"parameters\":[ "
+        + "{ \"name\":\"Time\", \"type\":\"isotime\", \"length\":24, \"units\":\"UTC\", \"fill\":null }, "
+        + "{ \"name\":\"B\", \"type\":\"double\", \"size\":[3], \"units\":\"nT\", \"fill\":\"-1e31\" }, "
+        + "{ \"name\":\"Flag\", \"type\":\"integer\", \"units\":null, \"fill\":\"-1\" }, "
+        + "{ \"name\":\"Label\", \"type\":\"string\", \"length\":4, \"units\":null, \"fill\":\"\" } ] }";
+
+    @Test
+    public void testIntegerType() throws Exception {
+        RecordLayout layout= RecordLayout.of( new JSONObject(INFO) );
+        assertEquals( 4, layout.parameterCount() );
+        assertEquals( RecordLayout.Type.INT, layout.type(2) );
+        assertEquals( 4, layout.width(2) );
+        assertEquals( 24 + 3*8, layout.offset(2) );
+        assertEquals( 24 + 3*8 + 4 + 4, layout.recordLength() );
+        assertEquals( layout.recordLength(), HapiUtil.bytesPerRec( new JSONObject(INFO) ) );
+    }
+
+    @Test
+    public void testIntAlias() {
+        assertEquals( RecordLayout.Type.INT, RecordLayout.Type.of("int") );
+        assertEquals( RecordLayout.Type.INT, RecordLayout.Type.of("integer") );
+    }
+
+    @Test( expected=IllegalArgumentException.class )
+    public void testUnsupportedType() {
+        RecordLayout.Type.of("complex");
+    }
+}